@@ -0,0 +1,225 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.CancellationSignal
+import android.util.Log
+import java.nio.ByteBuffer
+
+/**
+ * Re-encodes one audio track to AAC-LC through 16-bit PCM.
+ *
+ * Work is pulled by the caller: [encodeUntil] advances the decoder/encoder pair only until an encoded
+ * sample past the given timestamp is produced, which lets the audio be interleaved with whatever
+ * track drives the muxer. The encoder is configured from the decoder's output format, so sample
+ * rate changes such as HE-AAC SBR are picked up correctly. Only input samples in [startUs, endUs)
+ * are decoded.
+ */
+class AudioTranscoder(
+    private val inputPath: String,
+    private val trackIndex: Int,
+    private val bitrate: Int,
+    private val cancellation: CancellationSignal? = null,
+    private val startUs: Long = 0L,
+    private val endUs: Long = Long.MAX_VALUE
+) {
+
+    companion object {
+        private const val TIMEOUT_US = 5_000L
+        private const val BYTES_PER_SAMPLE = 2
+    }
+
+    private val extractor = MediaExtractor()
+    private var decoder: MediaCodec? = null
+    private var encoder: MediaCodec? = null
+    private val decoderInfo = MediaCodec.BufferInfo()
+    private val encoderInfo = MediaCodec.BufferInfo()
+
+    private var encoderFormat: MediaFormat? = null
+    private var sampleRate = 0
+    private var channelCount = 0
+
+    // Decoded PCM buffer currently being fed to the encoder
+    private var pcm: ByteBuffer? = null
+    private var pcmIndex = -1
+    private var pcmStart = 0
+    private var pcmPtsUs = 0L
+    private var pcmEndOfStream = false
+
+    private var inputDone = false
+    private var decoderDone = false
+    private var encoderDone = false
+    private var lastPtsUs = Long.MIN_VALUE
+
+    val isDone: Boolean get() = encoderDone
+
+    fun start() {
+        extractor.setDataSource(inputPath)
+        extractor.selectTrack(trackIndex)
+        if (startUs > 0) {
+            // Every audio sample is a sync sample, so skipping to the first one in range is exact
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            while (extractor.sampleTime in 0 until startUs) extractor.advance()
+        }
+        val inputFormat = extractor.getTrackFormat(trackIndex)
+        val decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME)!!)
+        this.decoder = decoder
+        decoder.configure(inputFormat, null, null, 0)
+        decoder.start()
+    }
+
+    /** Runs until the encoder reports its output format, which the muxer needs before it starts. */
+    fun awaitOutputFormat(): MediaFormat {
+        while (encoderFormat == null) {
+            if (encoderDone) throw IllegalStateException("Audio encoder produced no output")
+            step(null)
+        }
+        return encoderFormat!!
+    }
+
+    /** Encodes until a sample past [limitUs] has been delivered or the track ends. */
+    fun encodeUntil(limitUs: Long, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        while (!encoderDone && lastPtsUs <= limitUs) {
+            step(onSample)
+        }
+    }
+
+    fun release() {
+        try {
+            decoder?.stop()
+        } catch (e: Exception) {
+            Log.w("VideoRecompression", "Error stopping audio decoder: ${e.message}")
+        }
+        decoder?.release()
+        try {
+            encoder?.stop()
+        } catch (e: Exception) {
+            Log.w("VideoRecompression", "Error stopping audio encoder: ${e.message}")
+        }
+        encoder?.release()
+        extractor.release()
+        decoder = null
+        encoder = null
+    }
+
+    private fun step(onSample: ((ByteBuffer, MediaCodec.BufferInfo) -> Unit)?) {
+        cancellation?.throwIfCanceled()
+        feedDecoder()
+        feedEncoder()
+        drainEncoder(onSample)
+    }
+
+    private fun feedDecoder() {
+        if (inputDone) return
+        val decoder = decoder!!
+        val index = decoder.dequeueInputBuffer(TIMEOUT_US)
+        if (index < 0) return
+        val buffer = decoder.getInputBuffer(index)!!
+        val sampleSize = if (extractor.sampleTime >= endUs) -1 else extractor.readSampleData(buffer, 0)
+        if (sampleSize < 0) {
+            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+            inputDone = true
+        } else {
+            decoder.queueInputBuffer(index, 0, sampleSize, extractor.sampleTime, 0)
+            extractor.advance()
+        }
+    }
+
+    private fun feedEncoder() {
+        val decoder = decoder!!
+        if (pcm == null && !decoderDone) {
+            val index = decoder.dequeueOutputBuffer(decoderInfo, TIMEOUT_US)
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                configureEncoder(decoder.outputFormat)
+            } else if (index >= 0) {
+                if (encoder == null) configureEncoder(decoder.outputFormat)
+                val buffer = decoder.getOutputBuffer(index)!!
+                buffer.position(decoderInfo.offset)
+                buffer.limit(decoderInfo.offset + decoderInfo.size)
+                pcm = buffer
+                pcmIndex = index
+                pcmStart = decoderInfo.offset
+                pcmPtsUs = decoderInfo.presentationTimeUs
+                pcmEndOfStream = decoderInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0
+            }
+        }
+
+        val buffer = pcm ?: return
+        val encoder = encoder ?: return
+        while (true) {
+            val index = encoder.dequeueInputBuffer(TIMEOUT_US)
+            // Encoder is full; drain its output and come back
+            if (index < 0) return
+
+            val target = encoder.getInputBuffer(index)!!
+            target.clear()
+            val chunk = minOf(buffer.remaining(), target.remaining())
+            val consumedFrames = (buffer.position() - pcmStart) / (BYTES_PER_SAMPLE * channelCount)
+            val ptsUs = pcmPtsUs + consumedFrames * 1_000_000L / sampleRate
+            val slice = buffer.duplicate()
+            slice.limit(slice.position() + chunk)
+            target.put(slice)
+            buffer.position(buffer.position() + chunk)
+
+            val last = !buffer.hasRemaining()
+            val flags = if (last && pcmEndOfStream) MediaCodec.BUFFER_FLAG_END_OF_STREAM else 0
+            encoder.queueInputBuffer(index, 0, chunk, ptsUs, flags)
+            if (last) break
+        }
+
+        decoder.releaseOutputBuffer(pcmIndex, false)
+        pcm = null
+        if (pcmEndOfStream) decoderDone = true
+    }
+
+    private fun drainEncoder(onSample: ((ByteBuffer, MediaCodec.BufferInfo) -> Unit)?) {
+        val encoder = encoder ?: return
+        while (true) {
+            // While priming, leave encoded samples in the codec until the muxer is ready
+            if (onSample == null && encoderFormat != null) return
+
+            val index = encoder.dequeueOutputBuffer(encoderInfo, 0)
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) return
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                encoderFormat = encoder.outputFormat
+                continue
+            }
+            if (index < 0) continue
+
+            val buffer = encoder.getOutputBuffer(index)!!
+            if (encoderInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+                // Codec config already travels in the output format (csd-0)
+                encoderInfo.size = 0
+            }
+            if (encoderInfo.size > 0 && onSample != null) {
+                buffer.position(encoderInfo.offset)
+                buffer.limit(encoderInfo.offset + encoderInfo.size)
+                onSample(buffer, encoderInfo)
+                lastPtsUs = encoderInfo.presentationTimeUs
+            }
+            encoder.releaseOutputBuffer(index, false)
+            if (encoderInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                encoderDone = true
+                return
+            }
+        }
+    }
+
+    private fun configureEncoder(pcmFormat: MediaFormat) {
+        if (encoder != null) return
+        sampleRate = pcmFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        channelCount = pcmFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+
+        val format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount).apply {
+            setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC)
+            setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
+        }
+        Log.d("VideoRecompression", "Audio encoder: AAC ${sampleRate} Hz x $channelCount @ $bitrate bps")
+        val encoder = CodecCatalog.createEncoder(MediaFormat.MIMETYPE_AUDIO_AAC)
+        this.encoder = encoder
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        encoder.start()
+    }
+}
@@ -0,0 +1,77 @@
+package com.videorecompression
+
+import com.facebook.react.bridge.ReadableArray
+import com.facebook.react.bridge.ReadableMap
+import com.facebook.react.bridge.ReadableType
+import com.facebook.react.bridge.WritableArray
+import com.facebook.react.bridge.WritableMap
+import com.facebook.react.bridge.WritableNativeArray
+import com.facebook.react.bridge.WritableNativeMap
+import org.json.JSONArray
+import org.json.JSONObject
+
+/** Converts bridge maps to JSON and back, for results and settings kept on disk. Numbers come back as doubles. */
+object BridgeJson {
+
+    fun toJson(map: ReadableMap): JSONObject {
+        val json = JSONObject()
+        val keys = map.keySetIterator()
+        while (keys.hasNextKey()) {
+            val key = keys.nextKey()
+            when (map.getType(key)) {
+                ReadableType.Null -> json.put(key, JSONObject.NULL)
+                ReadableType.Boolean -> json.put(key, map.getBoolean(key))
+                ReadableType.Number -> json.put(key, map.getDouble(key))
+                ReadableType.String -> json.put(key, map.getString(key))
+                ReadableType.Map -> json.put(key, map.getMap(key)?.let { toJson(it) } ?: JSONObject.NULL)
+                ReadableType.Array -> json.put(key, map.getArray(key)?.let { toJson(it) } ?: JSONObject.NULL)
+            }
+        }
+        return json
+    }
+
+    private fun toJson(array: ReadableArray): JSONArray {
+        val json = JSONArray()
+        for (i in 0 until array.size()) {
+            when (array.getType(i)) {
+                ReadableType.Null -> json.put(JSONObject.NULL)
+                ReadableType.Boolean -> json.put(array.getBoolean(i))
+                ReadableType.Number -> json.put(array.getDouble(i))
+                ReadableType.String -> json.put(array.getString(i))
+                ReadableType.Map -> json.put(array.getMap(i)?.let { toJson(it) } ?: JSONObject.NULL)
+                ReadableType.Array -> json.put(array.getArray(i)?.let { toJson(it) } ?: JSONObject.NULL)
+            }
+        }
+        return json
+    }
+
+    fun fromJson(json: JSONObject): WritableMap {
+        val map = WritableNativeMap()
+        json.keys().forEach { key ->
+            when (val value = json.get(key)) {
+                JSONObject.NULL -> map.putNull(key)
+                is Boolean -> map.putBoolean(key, value)
+                is Number -> map.putDouble(key, value.toDouble())
+                is String -> map.putString(key, value)
+                is JSONObject -> map.putMap(key, fromJson(value))
+                is JSONArray -> map.putArray(key, fromJson(value))
+            }
+        }
+        return map
+    }
+
+    private fun fromJson(json: JSONArray): WritableArray {
+        val array = WritableNativeArray()
+        for (i in 0 until json.length()) {
+            when (val value = json.get(i)) {
+                JSONObject.NULL -> array.pushNull()
+                is Boolean -> array.pushBoolean(value)
+                is Number -> array.pushDouble(value.toDouble())
+                is String -> array.pushString(value)
+                is JSONObject -> array.pushMap(fromJson(value))
+                is JSONArray -> array.pushArray(fromJson(value))
+            }
+        }
+        return array
+    }
+}
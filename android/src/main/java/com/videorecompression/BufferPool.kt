@@ -0,0 +1,84 @@
+package com.videorecompression
+
+import android.media.MediaFormat
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded pool of direct ByteBuffers for sample copies, shared by all jobs of the module.
+ *
+ * Direct buffers let MediaExtractor/MediaMuxer read and write samples without an extra copy across
+ * JNI, and reusing them keeps large short-lived allocations off the GC. At most [maxPooledBuffers]
+ * idle buffers are retained; buffers larger than [maxPooledBytes] are never retained.
+ */
+class BufferPool(
+    private val maxPooledBuffers: Int = 8,
+    private val maxPooledBytes: Int = 16 * 1024 * 1024
+) {
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 1024 * 1024
+        private const val MIN_BUFFER_SIZE = 64 * 1024
+
+        /** Capacity needed for samples of a track, from KEY_MAX_INPUT_SIZE when the extractor provides it. */
+        fun capacityFor(format: MediaFormat): Int {
+            return if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE).takeIf { it > 0 } ?: DEFAULT_BUFFER_SIZE
+            } else {
+                DEFAULT_BUFFER_SIZE
+            }
+        }
+    }
+
+    private val idle = ArrayList<ByteBuffer>()
+    private val allocationCount = AtomicLong()
+    private val reuseCount = AtomicLong()
+
+    /** Number of direct buffers allocated since the pool was created. */
+    val allocations: Long get() = allocationCount.get()
+
+    /** Number of acquisitions served from an idle buffer. */
+    val reuses: Long get() = reuseCount.get()
+
+    fun acquire(minCapacity: Int): ByteBuffer {
+        synchronized(idle) {
+            // Smallest idle buffer that fits
+            var best = -1
+            for (i in idle.indices) {
+                val capacity = idle[i].capacity()
+                if (capacity >= minCapacity && (best < 0 || capacity < idle[best].capacity())) best = i
+            }
+            if (best >= 0) {
+                reuseCount.incrementAndGet()
+                return idle.removeAt(best).apply { clear() }
+            }
+        }
+        allocationCount.incrementAndGet()
+        return ByteBuffer.allocateDirect(roundUp(minCapacity))
+    }
+
+    /** Returns [buffer] and hands back a larger one for a sample that did not fit. */
+    fun grow(buffer: ByteBuffer, minCapacity: Int = buffer.capacity() * 2): ByteBuffer {
+        release(buffer)
+        return acquire(minCapacity)
+    }
+
+    fun release(buffer: ByteBuffer) {
+        if (!buffer.isDirect || buffer.capacity() > maxPooledBytes) return
+        synchronized(idle) {
+            if (idle.size < maxPooledBuffers) {
+                idle.add(buffer)
+            } else {
+                // Keep the larger buffers; they can serve every smaller request
+                val smallest = idle.indices.minByOrNull { idle[it].capacity() } ?: return
+                if (idle[smallest].capacity() < buffer.capacity()) idle[smallest] = buffer
+            }
+        }
+    }
+
+    private fun roundUp(capacity: Int): Int {
+        var size = MIN_BUFFER_SIZE
+        while (size < capacity && size < Int.MAX_VALUE / 2) size *= 2
+        return maxOf(size, capacity)
+    }
+}
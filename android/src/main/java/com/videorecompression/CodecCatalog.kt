@@ -0,0 +1,63 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.os.Build
+import android.util.Log
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Process-wide cache of codec capability lookups.
+ *
+ * Enumerating MediaCodecList and calling getCapabilitiesForType parse the device's codec
+ * descriptions on every call, which is noticeable when hundreds of clips are processed in a row. The
+ * list is read once and per-codec capabilities are memoized, so the scheduler and every transcode
+ * share the same answers.
+ */
+object CodecCatalog {
+
+    private val codecInfos: List<MediaCodecInfo> by lazy {
+        MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos.toList()
+    }
+
+    private val capabilities = ConcurrentHashMap<String, MediaCodecInfo.CodecCapabilities>()
+
+    /** The preferred codec for [mime], in the platform's ranking order. */
+    fun find(mime: String, encoder: Boolean): MediaCodecInfo? {
+        return codecInfos.firstOrNull { info ->
+            info.isEncoder == encoder && info.supportedTypes.any { it.equals(mime, ignoreCase = true) }
+        }
+    }
+
+    fun capabilitiesFor(info: MediaCodecInfo, mime: String): MediaCodecInfo.CodecCapabilities {
+        return capabilities.getOrPut("${info.name}/$mime") { info.getCapabilitiesForType(mime) }
+    }
+
+    /** Creates the preferred encoder for [mime], falling back to the platform's own choice. */
+    fun createEncoder(mime: String): MediaCodec {
+        val info = find(mime, encoder = true)
+        if (info != null) {
+            try {
+                return MediaCodec.createByCodecName(info.name)
+            } catch (e: Exception) {
+                Log.w("VideoRecompression", "Could not create ${info.name}: ${e.message}")
+            }
+        }
+        return MediaCodec.createEncoderByType(mime)
+    }
+
+    /** How many decoder/encoder pairs for [mime] the device claims to run at once, or null if unknown. */
+    fun maxSupportedInstances(mime: String): Int? {
+        val decoders = maxInstances(mime, encoder = false) ?: return null
+        val encoders = maxInstances(mime, encoder = true) ?: return null
+        return minOf(decoders, encoders)
+    }
+
+    /** How many instances of the preferred [mime] decoder or encoder can run at once, or null if unknown. */
+    fun maxInstances(mime: String, encoder: Boolean): Int? {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return null
+        val info = find(mime, encoder) ?: return null
+        return capabilitiesFor(info, mime).maxSupportedInstances
+    }
+}
@@ -0,0 +1,78 @@
+package com.videorecompression
+
+import com.facebook.react.bridge.ReadableMap
+
+/**
+ * Thresholds that decide whether a track is worth re-encoding.
+ *
+ * Video is judged by bits per pixel per frame instead of raw bitrate, so one threshold holds from
+ * 480p to 4K: 2 Mbps is generous for a 480p frame and starved for a 4K one. Frames larger than
+ * maxWidth x maxHeight (in display orientation) or faster than frameRate are re-encoded regardless
+ * of their bitrate. The default 0.25 allows 2.3 Mbps for 640x480 at 30 fps and 15.6 Mbps for
+ * 1080p30; 4K is above the default maximum size and always re-encoded.
+ */
+data class CompressionPolicy(
+    val maxWidth: Int,
+    val maxHeight: Int,
+    val maxFrameRate: Int?,
+    val bitsPerPixelThreshold: Double,
+    val audioBitrateThreshold: Int
+) {
+
+    companion object {
+        const val DEFAULT_MAX_DIMENSION = 1920
+        const val DEFAULT_BITS_PER_PIXEL_THRESHOLD = 0.25
+        const val DEFAULT_AUDIO_BITRATE_THRESHOLD = 192000
+
+        // Assumed when the source does not declare a frame rate
+        private const val FALLBACK_FRAME_RATE = 30.0
+
+        fun from(settings: ReadableMap?): CompressionPolicy {
+            return CompressionPolicy(
+                maxWidth = positiveInt(settings, "maxWidth") ?: DEFAULT_MAX_DIMENSION,
+                maxHeight = positiveInt(settings, "maxHeight") ?: DEFAULT_MAX_DIMENSION,
+                maxFrameRate = positiveInt(settings, "frameRate"),
+                bitsPerPixelThreshold = if (settings?.hasKey("bitsPerPixelThreshold") == true) {
+                    settings.getDouble("bitsPerPixelThreshold")
+                } else {
+                    DEFAULT_BITS_PER_PIXEL_THRESHOLD
+                },
+                audioBitrateThreshold = positiveInt(settings, "audioBitrateThreshold") ?: DEFAULT_AUDIO_BITRATE_THRESHOLD
+            )
+        }
+
+        fun bitsPerPixel(width: Int, height: Int, frameRate: Double, bitrate: Int): Double {
+            val pixelsPerSecond = width.toDouble() * height * (if (frameRate > 0) frameRate else FALLBACK_FRAME_RATE)
+            return if (pixelsPerSecond > 0) bitrate / pixelsPerSecond else 0.0
+        }
+
+        private fun positiveInt(settings: ReadableMap?, key: String): Int? {
+            if (settings == null || !settings.hasKey(key)) return null
+            return settings.getInt(key).takeIf { it > 0 }
+        }
+    }
+
+    /** Returns why the video track must be re-encoded, or null when it can be stream-copied. */
+    fun videoEncodeReason(displayWidth: Int, displayHeight: Int, frameRate: Double, bitrate: Int): String? {
+        if (displayWidth > maxWidth || displayHeight > maxHeight) {
+            return "resolution ${displayWidth}x$displayHeight exceeds ${maxWidth}x$maxHeight"
+        }
+        // Allow for 29.97-style rates when comparing against an integer limit
+        if (maxFrameRate != null && frameRate > maxFrameRate + 0.5) {
+            return "frame rate $frameRate exceeds $maxFrameRate"
+        }
+        val bpp = bitsPerPixel(displayWidth, displayHeight, frameRate, bitrate)
+        if (bpp > bitsPerPixelThreshold) {
+            return "%.3f bits/pixel/frame exceeds %.3f".format(bpp, bitsPerPixelThreshold)
+        }
+        return null
+    }
+
+    /** Returns why the audio track must be re-encoded, or null when it can be stream-copied. */
+    fun audioEncodeReason(bitrate: Int): String? {
+        if (bitrate > audioBitrateThreshold) {
+            return "bitrate $bitrate exceeds $audioBitrateThreshold"
+        }
+        return null
+    }
+}
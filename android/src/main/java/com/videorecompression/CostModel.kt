@@ -0,0 +1,146 @@
+package com.videorecompression
+
+import android.util.Log
+import org.json.JSONObject
+import java.io.File
+
+/**
+ * Per-device model of what a job costs, learned from the jobs this device has finished.
+ *
+ * Time is linear in the work a job does, with one rate per kind of work: milliseconds per MB for
+ * passthrough and for stream-copied bytes, per million decoded plus encoded pixels for each output
+ * video codec, and per second of encoded audio. The rates start at conservative mid-range device
+ * values and move towards each finished job's measured rate as an exponentially weighted mean.
+ * A job's time minus what the model attributes to its minor parts is credited to its dominant
+ * part, so one measurement updates one rate. Sizes of encoded outputs are corrected by the learned
+ * ratio of actual to planned bytes, since encoders rarely spend exactly their nominal bitrate.
+ *
+ * The model is a small JSON file, replaced atomically after every update.
+ */
+class CostModel(private val file: File) {
+
+    /** The work one job does; units as in the class description. */
+    class Work(
+        val passthroughMegabytes: Double = 0.0,
+        val copyMegabytes: Double = 0.0,
+        val videoMegapixels: Double = 0.0,
+        val videoCodec: String = "h264",
+        val audioSeconds: Double = 0.0
+    )
+
+    /** Predicted time of a job and how many finished jobs the rate behind it learned from. */
+    class Estimate(val timeMs: Long, val samples: Int)
+
+    private class Rate(var value: Double, var samples: Int)
+
+    companion object {
+        private const val VERSION = 1
+        private const val SIZE_RATIO = "sizeRatio"
+        // Later jobs keep at least this weight, so the model follows OS updates and thermal changes
+        private const val MIN_WEIGHT = 0.2
+
+        private val DEFAULT_RATES = mapOf(
+            "passthrough" to 1.0,
+            "copy" to 8.0,
+            "video:h264" to 5.0,
+            "video:hevc" to 7.0,
+            "audio" to 20.0,
+            SIZE_RATIO to 1.0
+        )
+    }
+
+    private val rates = HashMap<String, Rate>()
+    private var loaded = false
+
+    @Synchronized
+    fun estimate(work: Work): Estimate {
+        load()
+        val dominant = dominantPart(work)
+        return Estimate(
+            parts(work).sumOf { (key, units) -> rate(key).value * units }.toLong(),
+            dominant?.let { rate(it.first).samples } ?: 0
+        )
+    }
+
+    /** Encoded output size corrected by the learned ratio for [plannedBytes] from bitrate × duration. */
+    @Synchronized
+    fun predictEncodedSize(plannedBytes: Long): Long {
+        load()
+        return (plannedBytes * rate(SIZE_RATIO).value).toLong()
+    }
+
+    /**
+     * Learns from a finished job that took [timeMs] of processing. [plannedBytes] is the bitrate
+     * plan of an encoded output, if its size should calibrate [predictEncodedSize].
+     */
+    @Synchronized
+    fun record(work: Work, timeMs: Long, plannedBytes: Long?, actualBytes: Long) {
+        load()
+        dominantPart(work)?.let { (key, units) ->
+            val others = parts(work).filter { it.first != key }.sumOf { (other, otherUnits) -> rate(other).value * otherUnits }
+            update(key, maxOf(0.0, timeMs - others) / units)
+        }
+        if (plannedBytes != null && plannedBytes > 0 && actualBytes > 0) {
+            update(SIZE_RATIO, actualBytes.toDouble() / plannedBytes)
+        }
+        save()
+    }
+
+    private fun parts(work: Work): List<Pair<String, Double>> = listOf(
+        "passthrough" to work.passthroughMegabytes,
+        "copy" to work.copyMegabytes,
+        "video:${work.videoCodec}" to work.videoMegapixels,
+        "audio" to work.audioSeconds
+    ).filter { it.second > 0 }
+
+    /** The part that dominates the job's cost: encoding video, then audio, then moving bytes. */
+    private fun dominantPart(work: Work): Pair<String, Double>? {
+        val parts = parts(work).toMap()
+        return listOf("video:${work.videoCodec}", "audio", "copy", "passthrough")
+            .firstOrNull { parts.containsKey(it) }
+            ?.let { it to parts.getValue(it) }
+    }
+
+    private fun rate(key: String): Rate = rates.getOrPut(key) { Rate(DEFAULT_RATES[key] ?: DEFAULT_RATES.getValue("video:h264"), 0) }
+
+    private fun update(key: String, observed: Double) {
+        val rate = rate(key)
+        val weight = maxOf(1.0 / (rate.samples + 1), MIN_WEIGHT)
+        rate.value += weight * (observed - rate.value)
+        rate.samples++
+        Log.d("VideoRecompression", "Cost model $key: ${"%.3f".format(rate.value)} after ${rate.samples} jobs")
+    }
+
+    private fun load() {
+        if (loaded) return
+        loaded = true
+        if (!file.exists()) return
+        try {
+            val json = JSONObject(file.readText())
+            if (json.optInt("version") != VERSION) return
+            val stored = json.getJSONObject("rates")
+            stored.keys().forEach { key ->
+                val entry = stored.getJSONObject(key)
+                rates[key] = Rate(entry.getDouble("value"), entry.getInt("samples"))
+            }
+        } catch (e: Exception) {
+            // A damaged model only costs the calibration
+            Log.w("VideoRecompression", "Discarding cost model: ${e.message}")
+            rates.clear()
+        }
+    }
+
+    private fun save() {
+        val stored = JSONObject()
+        rates.forEach { (key, rate) -> stored.put(key, JSONObject().put("value", rate.value).put("samples", rate.samples)) }
+        val temp = File(file.parentFile, "${file.name}.tmp")
+        try {
+            file.parentFile?.mkdirs()
+            temp.writeText(JSONObject().put("version", VERSION).put("rates", stored).toString())
+            if (!temp.renameTo(file)) throw IllegalStateException("Cannot replace ${file.name}")
+        } catch (e: Exception) {
+            temp.delete()
+            Log.w("VideoRecompression", "Could not save cost model: ${e.message}")
+        }
+    }
+}
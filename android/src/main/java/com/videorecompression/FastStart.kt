@@ -0,0 +1,199 @@
+package com.videorecompression
+
+import android.os.CancellationSignal
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Moves `moov` in front of `mdat` so players can start without a range request for the file tail.
+ *
+ * MediaMuxer always writes `moov` last and offers no way to reserve room for it up front, so the
+ * media data has to move once. The pass keeps that to a single kernel copy: `moov` is mapped and
+ * patched in memory (every `stco`/`co64` chunk offset grows by the size of `moov`), written after
+ * the leading boxes of a sibling temp file, and the rest of the file follows through `transferTo`.
+ * The temp file then replaces the original, so a failed pass leaves a valid output behind.
+ *
+ * If a shifted offset no longer fits in 32 bits, every `stco` is upgraded to `co64` first.
+ */
+object FastStart {
+
+    private const val MAX_MOOV_SIZE = 64L * 1024 * 1024
+    // Bounds how long a kernel copy runs between cancellation checks
+    private const val TRANSFER_CHUNK_BYTES = 8L * 1024 * 1024
+
+    private val CONTAINERS = setOf("moov", "trak", "mdia", "minf", "stbl")
+
+    /** Rewrites [path] with `moov` first; returns false when the file already is, or has no `moov` to move. */
+    fun apply(path: String, cancellation: CancellationSignal? = null): Boolean {
+        val file = File(path)
+        val temp = File(file.parentFile, "${file.name}.faststart")
+
+        RandomAccessFile(file, "r").use { raf ->
+            val channel = raf.channel
+            val boxes = Mp4Probe.topLevelBoxes(channel) ?: return false
+            val moov = boxes.firstOrNull { it.type == "moov" }
+            val mdat = boxes.firstOrNull { it.type == "mdat" }
+            if (moov == null || mdat == null) {
+                Log.d("VideoRecompression", "FastStart: no moov/mdat pair, leaving $path as is")
+                return false
+            }
+            if (moov.offset < mdat.offset) return false
+            if (boxes.any { it.type == "moof" }) return false
+            if (moov.size > MAX_MOOV_SIZE) {
+                Log.w("VideoRecompression", "FastStart: moov too large (${moov.size} bytes)")
+                return false
+            }
+
+            // Patch a heap copy; the mapped original must stay intact until the swap
+            val mapped = channel.map(FileChannel.MapMode.READ_ONLY, moov.offset, moov.size)
+            var patched = ByteBuffer.allocate(moov.size.toInt()).put(mapped)
+            val maxOffset = maxChunkOffset(patched, 0, patched.capacity())
+            if (maxOffset + moov.size > 0xFFFFFFFFL) {
+                patched = upgradeChunkOffsets(patched)
+            }
+            val newSize = patched.capacity().toLong()
+            shiftChunkOffsets(patched, 0, patched.capacity()) { offset ->
+                if (offset < moov.offset) offset + newSize else offset + newSize - moov.size
+            }
+
+            try {
+                FileOutputStream(temp).channel.use { target ->
+                    transfer(channel, 0, mdat.offset, target, cancellation)
+                    patched.rewind()
+                    while (patched.hasRemaining()) target.write(patched)
+                    transfer(channel, mdat.offset, moov.offset - mdat.offset, target, cancellation)
+                    val tail = moov.offset + moov.size
+                    transfer(channel, tail, channel.size() - tail, target, cancellation)
+                }
+            } catch (e: Exception) {
+                temp.delete()
+                throw e
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete()
+            throw IllegalStateException("Cannot replace $path with its fast-start copy")
+        }
+        return true
+    }
+
+    private fun maxChunkOffset(buf: ByteBuffer, start: Int, end: Int): Long {
+        var max = 0L
+        forEachBox(buf, start, end) { type, _, payload, boxEnd ->
+            when (type) {
+                "stco" -> {
+                    val count = buf.getInt(payload + 4)
+                    for (i in 0 until count) max = maxOf(max, uint32(buf, payload + 8 + i * 4))
+                }
+                "co64" -> {
+                    val count = buf.getInt(payload + 4)
+                    for (i in 0 until count) max = maxOf(max, buf.getLong(payload + 8 + i * 8))
+                }
+                in CONTAINERS -> max = maxOf(max, maxChunkOffset(buf, payload, boxEnd))
+            }
+        }
+        return max
+    }
+
+    private fun shiftChunkOffsets(buf: ByteBuffer, start: Int, end: Int, shift: (Long) -> Long) {
+        forEachBox(buf, start, end) { type, _, payload, boxEnd ->
+            when (type) {
+                "stco" -> {
+                    val count = buf.getInt(payload + 4)
+                    for (i in 0 until count) {
+                        val index = payload + 8 + i * 4
+                        buf.putInt(index, shift(uint32(buf, index)).toInt())
+                    }
+                }
+                "co64" -> {
+                    val count = buf.getInt(payload + 4)
+                    for (i in 0 until count) {
+                        val index = payload + 8 + i * 8
+                        buf.putLong(index, shift(buf.getLong(index)))
+                    }
+                }
+                in CONTAINERS -> shiftChunkOffsets(buf, payload, boxEnd, shift)
+            }
+        }
+    }
+
+    /** Copies `moov` with every `stco` widened to `co64`, fixing the sizes of the enclosing boxes. */
+    private fun upgradeChunkOffsets(moov: ByteBuffer): ByteBuffer {
+        val out = ByteBuffer.allocate(moov.capacity() + extraCo64Bytes(moov, 0, moov.capacity()))
+        copyUpgraded(moov, 0, moov.capacity(), out)
+        out.rewind()
+        return out
+    }
+
+    private fun extraCo64Bytes(buf: ByteBuffer, start: Int, end: Int): Int {
+        var extra = 0
+        forEachBox(buf, start, end) { type, _, payload, boxEnd ->
+            when (type) {
+                "stco" -> extra += buf.getInt(payload + 4) * 4
+                in CONTAINERS -> extra += extraCo64Bytes(buf, payload, boxEnd)
+            }
+        }
+        return extra
+    }
+
+    private fun copyUpgraded(buf: ByteBuffer, start: Int, end: Int, out: ByteBuffer) {
+        forEachBox(buf, start, end) { type, boxStart, payload, boxEnd ->
+            when (type) {
+                "stco" -> {
+                    val count = buf.getInt(payload + 4)
+                    out.putInt(16 + count * 8)
+                    out.put("co64".toByteArray(Charsets.US_ASCII))
+                    out.putInt(buf.getInt(payload)) // version and flags
+                    out.putInt(count)
+                    for (i in 0 until count) out.putLong(uint32(buf, payload + 8 + i * 4))
+                }
+                in CONTAINERS -> {
+                    val sizeIndex = out.position()
+                    // Header as-is (forEachBox only walks 32-bit sizes), size fixed once the children are copied
+                    for (i in boxStart until payload) out.put(buf.get(i))
+                    copyUpgraded(buf, payload, boxEnd, out)
+                    out.putInt(sizeIndex, out.position() - sizeIndex)
+                }
+                else -> for (i in boxStart until boxEnd) out.put(buf.get(i))
+            }
+        }
+    }
+
+    private inline fun forEachBox(
+        buf: ByteBuffer, start: Int, end: Int, action: (type: String, boxStart: Int, payload: Int, boxEnd: Int) -> Unit
+    ) {
+        var pos = start
+        while (pos + 8 <= end) {
+            val size = uint32(buf, pos)
+            if (size < 8 || pos + size > end) break
+            action(fourCc(buf, pos + 4), pos, pos + 8, (pos + size).toInt())
+            pos += size.toInt()
+        }
+    }
+
+    private fun transfer(
+        source: FileChannel, position: Long, count: Long, target: FileChannel, cancellation: CancellationSignal?
+    ) {
+        var done = 0L
+        while (done < count) {
+            cancellation?.throwIfCanceled()
+            val transferred = source.transferTo(position + done, minOf(count - done, TRANSFER_CHUNK_BYTES), target)
+            if (transferred <= 0) {
+                throw IllegalStateException("transferTo stalled at ${position + done}")
+            }
+            done += transferred
+        }
+    }
+
+    private fun uint32(buf: ByteBuffer, index: Int): Long = buf.getInt(index).toLong() and 0xFFFFFFFFL
+
+    private fun fourCc(buf: ByteBuffer, index: Int): String {
+        val chars = CharArray(4) { (buf.get(index + it).toInt() and 0xFF).toChar() }
+        return String(chars)
+    }
+}
@@ -0,0 +1,111 @@
+package com.videorecompression
+
+import android.os.CancellationSignal
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+
+/**
+ * Content fingerprints for cache keys and change detection.
+ *
+ * [sparse] hashes (SHA-256) the file size and mtime, every top-level box header, all of `moov` and
+ * [WINDOW_COUNT] windows of [WINDOW_SIZE] bytes spread evenly over the `mdat` payloads (over the
+ * whole file when it is not ISO-BMFF). It reads at most `moov` plus about 1 MB however large the
+ * file is. Files up to [EXACT_LIMIT] are hashed in full after the size and mtime.
+ *
+ * Collision trade-off: `moov` lists the size and offset of every sample, so re-encoding, trimming
+ * or remuxing changes the fingerprint. What escapes it is an edit that keeps the size and mtime and
+ * only rewrites media bytes between the windows, e.g. a tool patching payloads in place and
+ * restoring the mtime, or silent storage corruption. Where that matters, use [full], which reads
+ * the file once in [CHUNK_SIZE] chunks. Because mtime is part of the sparse value, copies of the
+ * same video with different mtimes fingerprint differently; [full] is content-only.
+ */
+object Fingerprint {
+
+    private const val WINDOW_COUNT = 16
+    private const val WINDOW_SIZE = 64 * 1024
+    private const val EXACT_LIMIT = 4L * 1024 * 1024
+    private const val CHUNK_SIZE = 1024 * 1024
+    private const val MAX_MOOV_SIZE = 64L * 1024 * 1024
+
+    /** Sampled fingerprint, prefixed `sparse1:` so it never compares equal to a [full] value. */
+    fun sparse(file: File): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        RandomAccessFile(file, "r").use { raf ->
+            val channel = raf.channel
+            val size = channel.size()
+            digest.update(ByteBuffer.allocate(16).putLong(size).putLong(file.lastModified()).array())
+
+            if (size <= EXACT_LIMIT) {
+                hashRange(channel, 0, size, digest, null)
+                return "sparse1:" + hex(digest.digest())
+            }
+
+            val boxes = Mp4Probe.topLevelBoxes(channel)?.takeIf { list -> list.any { it.type == "mdat" } }
+            val ranges = if (boxes != null) {
+                val header = ByteBuffer.allocate(12)
+                for (box in boxes) {
+                    header.clear()
+                    header.put(box.type.toByteArray(Charsets.US_ASCII)).putLong(box.size).flip()
+                    digest.update(header)
+                    if (box.type == "moov" && box.size <= MAX_MOOV_SIZE) {
+                        hashRange(channel, box.offset, box.size, digest, null)
+                    }
+                }
+                boxes.filter { it.type == "mdat" }.map { (it.offset + it.headerSize) to (it.offset + it.size) }
+            } else {
+                listOf(0L to size)
+            }
+            hashWindows(channel, ranges, digest)
+        }
+        return "sparse1:" + hex(digest.digest())
+    }
+
+    /** SHA-256 of the whole file, computed incrementally in [CHUNK_SIZE] positional reads. */
+    fun full(file: File, cancellation: CancellationSignal? = null): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        RandomAccessFile(file, "r").use { raf ->
+            hashRange(raf.channel, 0, raf.channel.size(), digest, cancellation)
+        }
+        return "sha256:" + hex(digest.digest())
+    }
+
+    /** Hashes windows at evenly spaced positions of the concatenated [ranges], always including both ends. */
+    private fun hashWindows(channel: FileChannel, ranges: List<Pair<Long, Long>>, digest: MessageDigest) {
+        val total = ranges.sumOf { (start, end) -> end - start }
+        if (total <= 0) return
+        val window = minOf(WINDOW_SIZE.toLong(), total)
+        for (i in 0 until WINDOW_COUNT) {
+            // Logical position within the payloads, mapped back to a file offset
+            var logical = (total - window) * i / (WINDOW_COUNT - 1)
+            for ((start, end) in ranges) {
+                val length = end - start
+                if (logical < length) {
+                    hashRange(channel, start + logical, minOf(window, length - logical), digest, null)
+                    break
+                }
+                logical -= length
+            }
+        }
+    }
+
+    private fun hashRange(channel: FileChannel, offset: Long, length: Long, digest: MessageDigest, cancellation: CancellationSignal?) {
+        val buffer = ByteBuffer.allocate(minOf(length, CHUNK_SIZE.toLong()).toInt().coerceAtLeast(1))
+        var position = offset
+        val end = offset + length
+        while (position < end) {
+            cancellation?.throwIfCanceled()
+            buffer.clear()
+            buffer.limit(minOf(buffer.capacity().toLong(), end - position).toInt())
+            val read = channel.read(buffer, position)
+            if (read <= 0) break
+            buffer.flip()
+            digest.update(buffer)
+            position += read
+        }
+    }
+
+    private fun hex(bytes: ByteArray): String = bytes.joinToString("") { String.format("%02x", it) }
+}
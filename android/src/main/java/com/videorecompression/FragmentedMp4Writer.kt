@@ -0,0 +1,566 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+
+/**
+ * Writes fragmented MP4: an init segment (ftyp + moov without samples) followed by moof/mdat pairs.
+ *
+ * Samples are buffered until the next video keyframe at least [fragmentDurationUs] after the start
+ * of the current fragment (or until that much audio for audio-only output), then the fragment is
+ * appended to the file and reported to [onFragment]. A reported byte range never changes again, so
+ * an uploader can send it while the rest of the job is still encoding.
+ *
+ * Only H.264 and AAC are supported. H.264 samples arrive in Annex-B form from both MediaCodec and
+ * MediaExtractor and are rewritten with 4-byte length prefixes; avcC and esds are built from the
+ * codec-specific data. Decode times are derived from the sorted presentation times of a fragment,
+ * and trun version 1 carries the (possibly negative) composition offsets of B-frames.
+ *
+ * Each fragment is forced to disk and then passed to [onCommit] as a [ResumeJournal.Checkpoint].
+ * Opened with [resumeFrom], the writer keeps the file up to that checkpoint, continues the sequence
+ * numbers and decode times, and drops samples each track had already committed. The init segment
+ * and the fragments listed in [committed] are announced again before the new ones, so a listener
+ * of the resumed job sees the whole file.
+ */
+class FragmentedMp4Writer(
+    outputPath: String,
+    private val fragmentDurationUs: Long = DEFAULT_FRAGMENT_DURATION_US,
+    private val resumeFrom: ResumeJournal.Checkpoint? = null,
+    private val onCommit: ((ResumeJournal.Checkpoint) -> Unit)? = null,
+    private val committed: List<ResumeJournal.Checkpoint> = emptyList(),
+    private val onFragment: (Fragment) -> Unit
+) : SampleWriter {
+
+    /** A finished byte range of the output; sequence number 0 is the init segment. */
+    class Fragment(
+        val sequenceNumber: Int,
+        val offset: Long,
+        val length: Long,
+        val startUs: Long,
+        val durationUs: Long
+    )
+
+    companion object {
+        const val DEFAULT_FRAGMENT_DURATION_US = 2_000_000L
+
+        private const val VIDEO_TIMESCALE = 90_000
+        private const val DEFAULT_VIDEO_FRAME_US = 33_333L
+        private const val AAC_FRAME_SAMPLES = 1024L
+
+        // sample_depends_on = 2 (independent) / sample_depends_on = 1 plus sample_is_non_sync_sample
+        private const val SAMPLE_FLAGS_SYNC = 0x02000000
+        private const val SAMPLE_FLAGS_NON_SYNC = 0x01010000
+
+        // trun: data-offset, sample-duration, sample-size, sample-flags and composition-offset present
+        private const val TRUN_FLAGS = 0x000F01
+        // tfhd: default-base-is-moof
+        private const val TFHD_FLAGS = 0x020000
+
+        private val AAC_SAMPLE_RATES = intArrayOf(
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+        )
+
+        fun supports(format: MediaFormat): Boolean {
+            return when (format.getString(MediaFormat.KEY_MIME)) {
+                MediaFormat.MIMETYPE_VIDEO_AVC, MediaFormat.MIMETYPE_AUDIO_AAC -> true
+                else -> false
+            }
+        }
+    }
+
+    private class Sample(val ptsUs: Long, val size: Int, val sync: Boolean)
+
+    private class Track(val id: Int, val format: MediaFormat, val isVideo: Boolean, val timescale: Int) {
+        val samples = mutableListOf<Sample>()
+        var data = ByteArray(256 * 1024)
+        var dataSize = 0
+        var lastDts = -1L
+        var lastDuration = 0L
+        // What earlier fragments hold, for checkpoints
+        var committedFirstPtsUs = Long.MAX_VALUE
+        var committedLastPtsUs = -1L
+        var committedCount = 0
+        var committedBytes = 0L
+
+        fun checkpoint() = ResumeJournal.TrackCheckpoint(
+            lastDts, lastDuration, committedFirstPtsUs, committedLastPtsUs, committedCount, committedBytes
+        )
+
+        fun restore(state: ResumeJournal.TrackCheckpoint) {
+            lastDts = state.lastDts
+            lastDuration = state.lastDuration
+            committedFirstPtsUs = state.firstPtsUs
+            committedLastPtsUs = state.lastPtsUs
+            committedCount = state.sampleCount
+            committedBytes = state.bytes
+        }
+
+        fun ticks(us: Long): Long = us * timescale / 1_000_000L
+
+        fun append(bytes: ByteArray, offset: Int, length: Int) {
+            ensureCapacity(length)
+            System.arraycopy(bytes, offset, data, dataSize, length)
+            dataSize += length
+        }
+
+        fun appendLength(length: Int) {
+            ensureCapacity(4)
+            data[dataSize] = (length ushr 24).toByte()
+            data[dataSize + 1] = (length ushr 16).toByte()
+            data[dataSize + 2] = (length ushr 8).toByte()
+            data[dataSize + 3] = length.toByte()
+            dataSize += 4
+        }
+
+        private fun ensureCapacity(extra: Int) {
+            if (dataSize + extra > data.size) {
+                data = data.copyOf(maxOf(data.size * 2, dataSize + extra))
+            }
+        }
+    }
+
+    /** One traf worth of samples; each entry is (duration, size, flags, composition offset). */
+    private class Run(val track: Track, val baseDecodeTime: Long, val entries: List<LongArray>) {
+        val startUs: Long get() = baseDecodeTime * 1_000_000L / track.timescale
+        val endUs: Long
+            get() = (baseDecodeTime + entries.sumOf { it[0] }) * 1_000_000L / track.timescale
+    }
+
+    private val file = RandomAccessFile(outputPath, "rw").apply { setLength(resumeFrom?.outputLength ?: 0L) }
+    private val channel = file.channel.apply { position(resumeFrom?.outputLength ?: 0L) }
+    private val tracks = mutableListOf<Track>()
+    private var rotation = 0
+    private var sequenceNumber = resumeFrom?.sequenceNumber ?: 0
+    private var fragmentStartUs = -1L
+    private var scratch = ByteArray(0)
+
+    override fun canWrite(format: MediaFormat): Boolean = supports(format)
+
+    override fun addTrack(format: MediaFormat): Int {
+        if (!supports(format)) {
+            throw IllegalStateException(
+                "Fragmented output supports H.264 and AAC only, got ${format.getString(MediaFormat.KEY_MIME)}"
+            )
+        }
+        val isVideo = format.getString(MediaFormat.KEY_MIME) == MediaFormat.MIMETYPE_VIDEO_AVC
+        val timescale = if (isVideo) VIDEO_TIMESCALE else format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        tracks.add(Track(tracks.size + 1, format, isVideo, timescale))
+        return tracks.size - 1
+    }
+
+    override fun setOrientationHint(degrees: Int) {
+        rotation = degrees
+    }
+
+    override fun start() {
+        if (tracks.isEmpty()) throw IllegalStateException("No tracks added")
+        val init = initSegment()
+        if (resumeFrom != null) {
+            resume(resumeFrom, init)
+            announceCommitted(resumeFrom, init.size.toLong())
+            return
+        }
+        writeFully(ByteBuffer.wrap(init))
+        onFragment(Fragment(0, 0L, init.size.toLong(), 0L, 0L))
+    }
+
+    /** Reports the init segment and the fragments up to [checkpoint] that the interrupted run wrote. */
+    private fun announceCommitted(checkpoint: ResumeJournal.Checkpoint, initSize: Long) {
+        onFragment(Fragment(0, 0L, initSize, 0L, 0L))
+        var offset = initSize
+        var startUs = 0L
+        // Each checkpoint ends a fragment, and its resume time starts the next one
+        committed.filter { it.sequenceNumber <= checkpoint.sequenceNumber }.forEach { fragment ->
+            onFragment(Fragment(fragment.sequenceNumber, offset, fragment.outputLength - offset, startUs, fragment.resumeUs - startUs))
+            offset = fragment.outputLength
+            startUs = fragment.resumeUs
+        }
+    }
+
+    /** Continues after [checkpoint] if this run would have written the same init segment. */
+    private fun resume(checkpoint: ResumeJournal.Checkpoint, init: ByteArray) {
+        val existing = ByteBuffer.allocate(init.size)
+        while (existing.hasRemaining() && channel.read(existing, existing.position().toLong()) > 0) {
+            // Positional reads leave the append position alone
+        }
+        if (checkpoint.tracks.size != tracks.size || !existing.array().contentEquals(init)) {
+            throw ResumeMismatchException("Tracks or codec configuration differ from the interrupted run")
+        }
+        tracks.forEachIndexed { i, track -> track.restore(checkpoint.tracks[i]) }
+    }
+
+    override fun writeSampleData(trackIndex: Int, buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        if (info.size <= 0 || info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) return
+        val track = tracks[trackIndex]
+        val sync = !track.isVideo || info.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0
+        val ptsUs = maxOf(0L, info.presentationTimeUs)
+        // Sources restart a little early after a resume; the overlap is already in the file
+        if (ptsUs <= track.committedLastPtsUs) return
+
+        // Cut on video keyframes so every fragment can be decoded on its own
+        val cutsFragments = track.isVideo || tracks.none { it.isVideo }
+        if (sync && cutsFragments && fragmentStartUs >= 0 && ptsUs - fragmentStartUs >= fragmentDurationUs) {
+            flushFragment(nextUs = ptsUs)
+        }
+        if (fragmentStartUs < 0) fragmentStartUs = ptsUs
+
+        if (scratch.size < info.size) scratch = ByteArray(info.size)
+        val view = buffer.duplicate()
+        view.limit(info.offset + info.size)
+        view.position(info.offset)
+        view.get(scratch, 0, info.size)
+
+        val before = track.dataSize
+        if (track.isVideo) appendAvcSample(track, scratch, info.size) else track.append(scratch, 0, info.size)
+        track.samples.add(Sample(ptsUs, track.dataSize - before, sync))
+    }
+
+    override fun stop() {
+        flushFragment(nextUs = -1L)
+    }
+
+    override fun release() {
+        file.close()
+    }
+
+    /** Rewrites Annex-B NAL units with length prefixes; samples without start codes are kept as-is. */
+    private fun appendAvcSample(track: Track, bytes: ByteArray, size: Int) {
+        val units = nalUnits(bytes, size)
+        if (units.isEmpty()) {
+            track.append(bytes, 0, size)
+            return
+        }
+        for (unit in units) {
+            track.appendLength(unit.last - unit.first + 1)
+            track.append(bytes, unit.first, unit.last - unit.first + 1)
+        }
+    }
+
+    /**
+     * Splits Annex-B data into NAL unit ranges. Android always leads with a 4-byte start code; anything
+     * else is taken as already length-prefixed (a 3-byte code could be a 256-511 byte length) and
+     * yields no ranges.
+     */
+    private fun nalUnits(bytes: ByteArray, size: Int): List<IntRange> {
+        if (size < 4 || bytes[0] != 0.toByte() || findStartCode(bytes, 1, 4) != 1) return emptyList()
+        val units = mutableListOf<IntRange>()
+        var start = 4
+        while (start < size) {
+            val next = findStartCode(bytes, start, size)
+            var end = next
+            // Trailing zeros belong to the next 4-byte start code
+            while (end > start && bytes[end - 1] == 0.toByte()) end--
+            if (end > start) units.add(start until end)
+            start = next + 3
+        }
+        return units
+    }
+
+    private fun findStartCode(bytes: ByteArray, from: Int, size: Int): Int {
+        for (i in from until size - 2) {
+            if (bytes[i] == 0.toByte() && bytes[i + 1] == 0.toByte() && bytes[i + 2] == 1.toByte()) return i
+        }
+        return size
+    }
+
+    /** Appends the buffered fragment; [nextUs] is the first sample of the next one, or -1 at the end. */
+    private fun flushFragment(nextUs: Long) {
+        val runs = tracks.filter { it.samples.isNotEmpty() }.map { resolveRun(it) }
+        if (runs.isEmpty()) return
+        sequenceNumber++
+
+        // The moof size only depends on sample counts, so lay it out once to place the data
+        val moofSize = moof(runs, IntArray(runs.size)).size
+        var dataOffset = moofSize + 8
+        val offsets = IntArray(runs.size) { i -> dataOffset.also { dataOffset += runs[i].track.dataSize } }
+        val moof = moof(runs, offsets)
+
+        val start = channel.position()
+        writeFully(ByteBuffer.wrap(moof))
+        val mdatSize = 8 + runs.sumOf { it.track.dataSize }
+        writeFully(ByteBuffer.wrap(data { writeInt(mdatSize); writeBytes("mdat") }))
+        runs.forEach { run ->
+            val track = run.track
+            writeFully(ByteBuffer.wrap(track.data, 0, track.dataSize))
+            track.committedFirstPtsUs = minOf(track.committedFirstPtsUs, track.samples.minOf { it.ptsUs })
+            track.committedLastPtsUs = maxOf(track.committedLastPtsUs, track.samples.maxOf { it.ptsUs })
+            track.committedCount += track.samples.size
+            track.committedBytes += track.dataSize
+            track.samples.clear()
+            track.dataSize = 0
+        }
+        if (onCommit != null && nextUs >= 0) {
+            channel.force(false)
+            onCommit.invoke(
+                ResumeJournal.Checkpoint(sequenceNumber, channel.position(), nextUs, tracks.map { it.checkpoint() })
+            )
+        }
+
+        val startUs = runs.minOf { it.startUs }
+        onFragment(Fragment(sequenceNumber, start, channel.position() - start, startUs, runs.maxOf { it.endUs } - startUs))
+        fragmentStartUs = -1L
+    }
+
+    private fun writeFully(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) channel.write(buffer)
+    }
+
+    /** Assigns decode times from the sorted presentation times and derives durations and offsets. */
+    private fun resolveRun(track: Track): Run {
+        val pts = track.samples.map { track.ticks(it.ptsUs) }
+        val sorted = pts.sorted()
+        val dts = LongArray(pts.size)
+        var previous = track.lastDts
+        for (i in dts.indices) {
+            dts[i] = if (previous < 0) sorted[i] else maxOf(sorted[i], previous + 1)
+            previous = dts[i]
+        }
+
+        val defaultDuration = if (track.isVideo) track.ticks(DEFAULT_VIDEO_FRAME_US) else AAC_FRAME_SAMPLES
+        val entries = track.samples.mapIndexed { i, sample ->
+            val duration = when {
+                i + 1 < dts.size -> dts[i + 1] - dts[i]
+                track.lastDuration > 0 -> track.lastDuration
+                else -> defaultDuration
+            }
+            longArrayOf(
+                duration,
+                sample.size.toLong(),
+                (if (sample.sync) SAMPLE_FLAGS_SYNC else SAMPLE_FLAGS_NON_SYNC).toLong(),
+                pts[i] - dts[i]
+            )
+        }
+        if (entries.size > 1) track.lastDuration = entries[entries.size - 2][0]
+        track.lastDts = dts.last()
+        return Run(track, dts.first(), entries)
+    }
+
+    private fun moof(runs: List<Run>, dataOffsets: IntArray): ByteArray {
+        val trafs = runs.mapIndexed { i, run ->
+            box(
+                "traf",
+                fullBox("tfhd", 0, TFHD_FLAGS, data { writeInt(run.track.id) }),
+                fullBox("tfdt", 1, 0, data { writeLong(run.baseDecodeTime) }),
+                fullBox("trun", 1, TRUN_FLAGS, data {
+                    writeInt(run.entries.size)
+                    writeInt(dataOffsets[i])
+                    run.entries.forEach { entry -> entry.forEach { writeInt(it.toInt()) } }
+                })
+            )
+        }
+        return box("moof", fullBox("mfhd", 0, 0, data { writeInt(sequenceNumber) }), *trafs.toTypedArray())
+    }
+
+    private fun initSegment(): ByteArray {
+        val ftyp = box("ftyp", data {
+            writeBytes("iso5")
+            writeInt(512)
+            writeBytes("iso5")
+            writeBytes("iso6")
+            writeBytes("mp41")
+        })
+        val mvhd = fullBox("mvhd", 0, 0, data {
+            writeInt(0) // creation time
+            writeInt(0) // modification time
+            writeInt(1000)
+            writeInt(0) // duration is unknown until the last fragment
+            writeInt(0x00010000) // rate 1.0
+            writeShort(0x0100) // volume 1.0
+            writeShort(0)
+            writeLong(0)
+            writeMatrix(0)
+            repeat(6) { writeInt(0) }
+            writeInt(tracks.size + 1)
+        })
+        val traks = tracks.map { trak(it) }
+        val mvex = box("mvex", *tracks.map { track ->
+            fullBox("trex", 0, 0, data {
+                writeInt(track.id)
+                writeInt(1) // sample description index
+                writeInt(0)
+                writeInt(0)
+                writeInt(0)
+            })
+        }.toTypedArray())
+        return ftyp + box("moov", mvhd, *traks.toTypedArray(), mvex)
+    }
+
+    private fun trak(track: Track): ByteArray {
+        val width = if (track.isVideo) track.format.getInteger(MediaFormat.KEY_WIDTH) else 0
+        val height = if (track.isVideo) track.format.getInteger(MediaFormat.KEY_HEIGHT) else 0
+        val tkhd = fullBox("tkhd", 0, 0x000003, data {
+            writeInt(0)
+            writeInt(0)
+            writeInt(track.id)
+            writeInt(0)
+            writeInt(0) // duration
+            writeLong(0)
+            writeShort(0) // layer
+            writeShort(0) // alternate group
+            writeShort(if (track.isVideo) 0 else 0x0100)
+            writeShort(0)
+            writeMatrix(if (track.isVideo) rotation else 0)
+            writeInt(width shl 16)
+            writeInt(height shl 16)
+        })
+        val mdhd = fullBox("mdhd", 0, 0, data {
+            writeInt(0)
+            writeInt(0)
+            writeInt(track.timescale)
+            writeInt(0)
+            writeShort(0x55C4) // "und"
+            writeShort(0)
+        })
+        val hdlr = fullBox("hdlr", 0, 0, data {
+            writeInt(0)
+            writeBytes(if (track.isVideo) "vide" else "soun")
+            repeat(3) { writeInt(0) }
+            writeBytes(if (track.isVideo) "VideoHandler" else "SoundHandler")
+            writeByte(0)
+        })
+        val mediaHeader = if (track.isVideo) {
+            fullBox("vmhd", 0, 1, data { writeLong(0) })
+        } else {
+            fullBox("smhd", 0, 0, data { writeInt(0) })
+        }
+        val dinf = box("dinf", fullBox("dref", 0, 0, data { writeInt(1) }, fullBox("url ", 0, 1)))
+        val stbl = box(
+            "stbl",
+            fullBox("stsd", 0, 0, data { writeInt(1) }, if (track.isVideo) avc1(track) else mp4a(track)),
+            fullBox("stts", 0, 0, data { writeInt(0) }),
+            fullBox("stsc", 0, 0, data { writeInt(0) }),
+            fullBox("stsz", 0, 0, data { writeInt(0); writeInt(0) }),
+            fullBox("stco", 0, 0, data { writeInt(0) })
+        )
+        return box("trak", tkhd, box("mdia", mdhd, hdlr, box("minf", mediaHeader, dinf, stbl)))
+    }
+
+    private fun avc1(track: Track): ByteArray {
+        val format = track.format
+        // Encoders put SPS and PPS in csd-0 and csd-1, some in csd-0 alone; sort them by NAL type
+        val parameterSets = listOfNotNull(csd(format, "csd-0"), csd(format, "csd-1")).flatMap { bytes ->
+            nalUnits(bytes, bytes.size).map { bytes.copyOfRange(it.first, it.last + 1) }
+        }
+        val sps = parameterSets.filter { it[0].toInt() and 0x1F == 7 }
+        val pps = parameterSets.filter { it[0].toInt() and 0x1F == 8 }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw IllegalStateException("H.264 track has no SPS/PPS for avcC")
+        }
+        val avcC = box("avcC", data {
+            writeByte(1)
+            writeByte(sps[0][1].toInt()) // profile
+            writeByte(sps[0][2].toInt()) // profile compatibility
+            writeByte(sps[0][3].toInt()) // level
+            writeByte(0xFF) // 4-byte NAL lengths
+            writeByte(0xE0 or sps.size)
+            sps.forEach { writeShort(it.size); write(it) }
+            writeByte(pps.size)
+            pps.forEach { writeShort(it.size); write(it) }
+        })
+        return box("avc1", data {
+            writeVisualSampleEntry(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT))
+        }, avcC)
+    }
+
+    private fun mp4a(track: Track): ByteArray {
+        val format = track.format
+        val sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+        val channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+        val bitrate = if (format.containsKey(MediaFormat.KEY_BIT_RATE)) format.getInteger(MediaFormat.KEY_BIT_RATE) else 0
+        val audioSpecificConfig = csd(format, "csd-0") ?: run {
+            // AAC-LC AudioSpecificConfig: object type, sample rate index, channel configuration
+            val rateIndex = AAC_SAMPLE_RATES.indexOf(sampleRate).takeIf { it >= 0 } ?: 4
+            byteArrayOf(((2 shl 3) or (rateIndex shr 1)).toByte(), (((rateIndex and 1) shl 7) or (channels shl 3)).toByte())
+        }
+
+        val decoderConfig = descriptor(0x04, data {
+            writeByte(0x40) // MPEG-4 audio
+            writeByte(0x15) // audio stream
+            writeByte(0)
+            writeShort(0) // buffer size
+            writeInt(bitrate)
+            writeInt(bitrate)
+            write(descriptor(0x05, audioSpecificConfig))
+        })
+        val esDescriptor = descriptor(0x03, data {
+            writeShort(track.id)
+            writeByte(0)
+            write(decoderConfig)
+            write(descriptor(0x06, byteArrayOf(2)))
+        })
+
+        return box("mp4a", data {
+            repeat(6) { writeByte(0) }
+            writeShort(1) // data reference index
+            writeLong(0)
+            writeShort(channels)
+            writeShort(16)
+            writeInt(0)
+            // 16.16 fixed point; rates above 65535 Hz do not fit and are left to the esds config
+            writeInt(if (sampleRate <= 0xFFFF) sampleRate shl 16 else 0)
+        }, fullBox("esds", 0, 0, esDescriptor))
+    }
+
+    private fun csd(format: MediaFormat, key: String): ByteArray? {
+        val buffer = format.getByteBuffer(key) ?: return null
+        val view = buffer.duplicate()
+        view.position(0)
+        return ByteArray(view.remaining()).also { view.get(it) }
+    }
+
+    private fun DataOutputStream.writeVisualSampleEntry(width: Int, height: Int) {
+        repeat(6) { writeByte(0) }
+        writeShort(1) // data reference index
+        repeat(4) { writeInt(0) }
+        writeShort(width)
+        writeShort(height)
+        writeInt(0x00480000) // 72 dpi
+        writeInt(0x00480000)
+        writeInt(0)
+        writeShort(1) // frame count
+        write(ByteArray(32)) // compressor name
+        writeShort(0x0018) // depth
+        writeShort(-1)
+    }
+
+    private fun DataOutputStream.writeMatrix(degrees: Int) {
+        val one = 0x10000
+        val (a, b, c, d) = when (degrees) {
+            90 -> listOf(0, one, -one, 0)
+            180 -> listOf(-one, 0, 0, -one)
+            270 -> listOf(0, -one, one, 0)
+            else -> listOf(one, 0, 0, one)
+        }
+        listOf(a, b, 0, c, d, 0, 0, 0, 0x40000000).forEach { writeInt(it) }
+    }
+
+    private fun data(block: DataOutputStream.() -> Unit): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).apply(block).flush()
+        return bytes.toByteArray()
+    }
+
+    private fun box(type: String, vararg children: ByteArray): ByteArray = data {
+        writeInt(8 + children.sumOf { it.size })
+        writeBytes(type)
+        children.forEach { write(it) }
+    }
+
+    private fun fullBox(type: String, version: Int, flags: Int, vararg children: ByteArray): ByteArray {
+        return box(type, data { writeInt((version shl 24) or flags) }, *children)
+    }
+
+    /** MPEG-4 descriptor with the 4-byte size form that every parser accepts. */
+    private fun descriptor(tag: Int, body: ByteArray): ByteArray = data {
+        writeByte(tag)
+        writeByte(0x80 or ((body.size shr 21) and 0x7F))
+        writeByte(0x80 or ((body.size shr 14) and 0x7F))
+        writeByte(0x80 or ((body.size shr 7) and 0x7F))
+        writeByte(body.size and 0x7F)
+        write(body)
+    }
+}
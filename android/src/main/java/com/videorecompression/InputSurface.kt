@@ -0,0 +1,102 @@
+package com.videorecompression
+
+import android.opengl.EGL14
+import android.opengl.EGLConfig
+import android.opengl.EGLContext
+import android.opengl.EGLDisplay
+import android.opengl.EGLExt
+import android.opengl.EGLSurface
+import android.view.Surface
+
+/**
+ * EGL window surface wrapping an encoder input [Surface].
+ *
+ * Frames drawn while this surface is current are handed straight to the encoder on swapBuffers.
+ */
+class InputSurface(private val surface: Surface) {
+
+    companion object {
+        private const val EGL_RECORDABLE_ANDROID = 0x3142
+    }
+
+    private var eglDisplay: EGLDisplay = EGL14.EGL_NO_DISPLAY
+    private var eglContext: EGLContext = EGL14.EGL_NO_CONTEXT
+    private var eglSurface: EGLSurface = EGL14.EGL_NO_SURFACE
+
+    init {
+        eglSetup()
+    }
+
+    private fun eglSetup() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY)
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw IllegalStateException("Unable to get EGL14 display")
+        }
+        val version = IntArray(2)
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            eglDisplay = EGL14.EGL_NO_DISPLAY
+            throw IllegalStateException("Unable to initialize EGL14")
+        }
+
+        // The recordable flag tells EGL the surface feeds a video encoder
+        val attribList = intArrayOf(
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL14.EGL_NONE
+        )
+        val configs = arrayOfNulls<EGLConfig>(1)
+        val numConfigs = IntArray(1)
+        if (!EGL14.eglChooseConfig(eglDisplay, attribList, 0, configs, 0, configs.size, numConfigs, 0) ||
+            numConfigs[0] == 0
+        ) {
+            throw IllegalStateException("Unable to find a recordable RGB888 EGL config")
+        }
+
+        val contextAttribs = intArrayOf(EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE)
+        eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0)
+        checkEglError("eglCreateContext")
+
+        val surfaceAttribs = intArrayOf(EGL14.EGL_NONE)
+        eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], surface, surfaceAttribs, 0)
+        checkEglError("eglCreateWindowSurface")
+    }
+
+    fun makeCurrent() {
+        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+            throw IllegalStateException("eglMakeCurrent failed")
+        }
+    }
+
+    fun swapBuffers(): Boolean {
+        return EGL14.eglSwapBuffers(eglDisplay, eglSurface)
+    }
+
+    /** Sets the timestamp the encoder will see for the next swapped frame. */
+    fun setPresentationTime(nanoseconds: Long) {
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, nanoseconds)
+    }
+
+    fun release() {
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)
+            EGL14.eglDestroySurface(eglDisplay, eglSurface)
+            EGL14.eglDestroyContext(eglDisplay, eglContext)
+            EGL14.eglReleaseThread()
+            EGL14.eglTerminate(eglDisplay)
+        }
+        surface.release()
+        eglDisplay = EGL14.EGL_NO_DISPLAY
+        eglContext = EGL14.EGL_NO_CONTEXT
+        eglSurface = EGL14.EGL_NO_SURFACE
+    }
+
+    private fun checkEglError(operation: String) {
+        val error = EGL14.eglGetError()
+        if (error != EGL14.EGL_SUCCESS) {
+            throw IllegalStateException("$operation: EGL error 0x${Integer.toHexString(error)}")
+        }
+    }
+}
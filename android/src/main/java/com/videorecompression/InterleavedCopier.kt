@@ -0,0 +1,181 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.os.Build
+import android.os.CancellationSignal
+import android.util.Log
+import java.nio.ByteBuffer
+
+/**
+ * Stream-copies several tracks into a [SampleWriter] in presentation-time order.
+ *
+ * Every track is read through its own MediaExtractor so samples can be pulled by timestamp instead
+ * of file order. A track keeps the write turn while its next sample is no more than
+ * [interleaveWindowUs] ahead of the earliest pending sample of any other track, so the output is
+ * written in chunks of roughly that duration and players never have to seek between tracks.
+ *
+ * Sample buffers come from the shared [BufferPool], sized per track from KEY_MAX_INPUT_SIZE.
+ * [cancellation] is checked before every sample.
+ *
+ * Only samples in [startUs, endUs) are copied. Samples before [startUs] are skipped rather than
+ * decoded, so a trimmed start is only exact for tracks made of sync samples (audio); video is cut
+ * by [SmartCut] instead.
+ */
+class InterleavedCopier(
+    private val inputPath: String,
+    private val primaryExtractor: MediaExtractor?,
+    private val bufferPool: BufferPool,
+    private val interleaveWindowUs: Long = DEFAULT_INTERLEAVE_WINDOW_US,
+    private val cancellation: CancellationSignal? = null,
+    private val startUs: Long = 0L,
+    private val endUs: Long = Long.MAX_VALUE
+) {
+
+    companion object {
+        const val DEFAULT_INTERLEAVE_WINDOW_US = 500_000L
+        private const val MAX_SAMPLE_SIZE = 64 * 1024 * 1024
+    }
+
+    private class Source(val extractor: MediaExtractor, val muxerTrackIndex: Int, val owned: Boolean) {
+        var buffer: ByteBuffer? = null
+    }
+
+    private val sources = mutableListOf<Source>()
+
+    /** True once every added track has been copied to the end. */
+    val isFinished: Boolean get() = sources.all { sampleTime(it) < 0 }
+
+    /** Adds an input track; the first one reuses the primary extractor if any, later ones open their own. */
+    fun addTrack(trackIndex: Int, muxerTrackIndex: Int) {
+        val source = if (sources.isEmpty() && primaryExtractor != null) {
+            primaryExtractor.selectTrack(trackIndex)
+            Source(primaryExtractor, muxerTrackIndex, owned = false)
+        } else {
+            val extractor = MediaExtractor()
+            try {
+                extractor.setDataSource(inputPath)
+                extractor.selectTrack(trackIndex)
+            } catch (e: Exception) {
+                extractor.release()
+                throw e
+            }
+            Source(extractor, muxerTrackIndex, owned = true)
+        }
+        if (startUs > 0) {
+            source.extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            while (source.extractor.sampleTime in 0 until startUs) source.extractor.advance()
+        }
+        sources.add(source)
+        source.buffer = bufferPool.acquire(BufferPool.capacityFor(source.extractor.getTrackFormat(trackIndex)))
+    }
+
+    fun copy(muxer: SampleWriter, stats: MuxStats) {
+        copyUntil(muxer, stats, Long.MAX_VALUE)
+    }
+
+    /**
+     * Copies samples up to and including [limitUs]. Lets a transcoded track drive the interleaving
+     * of stream-copied tracks written alongside it.
+     */
+    fun copyUntil(muxer: SampleWriter, stats: MuxStats, limitUs: Long) {
+        val bufferInfo = MediaCodec.BufferInfo()
+        var current: Source? = null
+
+        while (true) {
+            cancellation?.throwIfCanceled()
+            current = nextSource(current) ?: break
+            val extractor = current.extractor
+            if (sampleTime(current) > limitUs) break
+
+            val sampleSize = readSample(current)
+            if (sampleSize < 0) {
+                // sampleTime said there was data; treat a failed read as end of track
+                extractor.advanceToEnd()
+                continue
+            }
+
+            bufferInfo.presentationTimeUs = extractor.sampleTime
+            bufferInfo.flags = extractor.sampleFlags
+            bufferInfo.offset = 0
+            bufferInfo.size = sampleSize
+
+            stats.writeSample(muxer, current.muxerTrackIndex, current.buffer!!, bufferInfo)
+            extractor.advance()
+        }
+    }
+
+    fun release() {
+        sources.forEach { source ->
+            source.buffer?.let { bufferPool.release(it) }
+            source.buffer = null
+            if (source.owned) {
+                try {
+                    source.extractor.release()
+                } catch (e: Exception) {
+                    Log.w("VideoRecompression", "Error releasing extractor: ${e.message}")
+                }
+            }
+        }
+        sources.clear()
+    }
+
+    /** Reads the current sample into the source buffer, growing it when the sample does not fit. */
+    private fun readSample(source: Source): Int {
+        var buffer = source.buffer!!
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            val size = source.extractor.sampleSize
+            if (size > buffer.capacity()) {
+                buffer = bufferPool.grow(buffer, size.toInt())
+                source.buffer = buffer
+            }
+        }
+        while (true) {
+            try {
+                return source.extractor.readSampleData(buffer, 0)
+            } catch (e: IllegalArgumentException) {
+                // Thrown by the native extractor when the sample exceeds the buffer capacity
+                if (buffer.capacity() >= MAX_SAMPLE_SIZE) throw e
+                buffer = bufferPool.grow(buffer)
+                source.buffer = buffer
+            }
+        }
+    }
+
+    private fun nextSource(current: Source?): Source? {
+        var earliest: Source? = null
+        var earliestTime = Long.MAX_VALUE
+        var earliestOtherTime = Long.MAX_VALUE
+        for (source in sources) {
+            val time = sampleTime(source)
+            if (time < 0) continue
+            if (time < earliestTime) {
+                earliest = source
+                earliestTime = time
+            }
+            if (source !== current) earliestOtherTime = minOf(earliestOtherTime, time)
+        }
+
+        if (current != null) {
+            val currentTime = sampleTime(current)
+            if (currentTime >= 0 &&
+                (earliestOtherTime == Long.MAX_VALUE || currentTime <= earliestOtherTime + interleaveWindowUs)
+            ) {
+                return current
+            }
+        }
+        return earliest
+    }
+
+    /** Timestamp of the next sample to copy, or -1 once the track or the range has ended. */
+    private fun sampleTime(source: Source): Long {
+        val time = source.extractor.sampleTime
+        return if (time >= endUs) -1 else time
+    }
+
+    private fun MediaExtractor.advanceToEnd() {
+        while (sampleTime >= 0 && advance()) {
+            // Drain remaining sample positions
+        }
+    }
+}
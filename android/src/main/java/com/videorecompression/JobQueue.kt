@@ -0,0 +1,174 @@
+package com.videorecompression
+
+import android.util.Log
+import com.facebook.react.bridge.ReadableMap
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.File
+import java.io.FileOutputStream
+
+/**
+ * Durable record of submitted jobs, so work survives the React instance and the process.
+ *
+ * The queue is an append-only log of JSON lines: `submit` with the job's paths and settings, then
+ * `completed`, `failed` or `cancelled` with its outcome. Every line is synced before the call
+ * returns, and a torn last line is skipped on load. Jobs with a submit but no outcome are
+ * [pending] and are run again when the module starts; an `attempt` line is appended before each
+ * of those runs, so a job that keeps killing the process can be given up on. Once the log holds
+ * more dead lines than live ones it is compacted into a fresh file holding the pending submits
+ * and the latest [MAX_FINISHED] outcomes, which then replaces the log atomically.
+ */
+class JobQueue(private val file: File) {
+
+    class QueuedJob(
+        val jobId: String,
+        val inputPath: String,
+        val outputPath: String,
+        val settings: JSONObject,
+        // Runs started so far, the initial one included
+        var attempts: Int = 1
+    )
+
+    companion object {
+        private const val MAX_FINISHED = 100
+        private const val MIN_COMPACT_LINES = 64
+    }
+
+    private val pending = LinkedHashMap<String, QueuedJob>()
+    // Outcome records by job id, oldest first
+    private val finished = LinkedHashMap<String, JSONObject>()
+    private var lineCount = 0
+    private var loaded = false
+
+    /** Records a new job; it stays pending until one of the outcome calls. */
+    @Synchronized
+    fun submit(jobId: String, inputPath: String, outputPath: String, settings: ReadableMap?) {
+        load()
+        val job = QueuedJob(jobId, inputPath, outputPath, settings?.let { BridgeJson.toJson(it) } ?: JSONObject())
+        finished.remove(jobId)
+        pending[jobId] = job
+        append(submitRecord(job))
+    }
+
+    /** Records that a pending job is being run again. */
+    @Synchronized
+    fun attempt(jobId: String) {
+        load()
+        val job = pending[jobId] ?: return
+        job.attempts++
+        append(JSONObject().put("op", "attempt").put("jobId", jobId))
+    }
+
+    @Synchronized
+    fun complete(jobId: String, result: ReadableMap) {
+        finish(JSONObject().put("op", "completed").put("jobId", jobId).put("result", BridgeJson.toJson(result)))
+    }
+
+    /** Records a failure; [code] "CANCELLED" marks the job cancelled. */
+    @Synchronized
+    fun fail(jobId: String, code: String, message: String) {
+        val op = if (code == "CANCELLED") "cancelled" else "failed"
+        finish(JSONObject().put("op", op).put("jobId", jobId).put("errorCode", code).put("error", message))
+    }
+
+    /** Jobs without an outcome, in submission order. */
+    @Synchronized
+    fun pending(): List<QueuedJob> {
+        load()
+        return pending.values.toList()
+    }
+
+    /** `{ jobId, status, result?, errorCode?, error? }` for a known job, or null. */
+    @Synchronized
+    fun status(jobId: String): JSONObject? {
+        load()
+        if (pending.containsKey(jobId)) return JSONObject().put("jobId", jobId).put("status", "pending")
+        val record = finished[jobId] ?: return null
+        return JSONObject(record.toString()).apply {
+            put("status", remove("op"))
+        }
+    }
+
+    private fun finish(record: JSONObject) {
+        load()
+        val jobId = record.getString("jobId")
+        if (pending.remove(jobId) == null) return
+        finished.remove(jobId)
+        finished[jobId] = record
+        while (finished.size > MAX_FINISHED) finished.remove(finished.keys.first())
+        try {
+            append(record)
+        } catch (e: Exception) {
+            // The job itself succeeded or failed already; at worst it runs again after a restart
+            Log.w("VideoRecompression", "Could not record the outcome of job $jobId: ${e.message}")
+            return
+        }
+        if (lineCount >= MIN_COMPACT_LINES && lineCount > 2 * (pending.size + finished.size)) compact()
+    }
+
+    private fun load() {
+        if (loaded) return
+        loaded = true
+        if (!file.exists()) return
+        file.forEachLine { line ->
+            lineCount++
+            val record = try {
+                JSONObject(line)
+            } catch (e: JSONException) {
+                Log.w("VideoRecompression", "Skipping damaged job queue line")
+                return@forEachLine
+            }
+            val jobId = record.optString("jobId")
+            when (record.optString("op")) {
+                "submit" -> {
+                    finished.remove(jobId)
+                    pending[jobId] = QueuedJob(
+                        jobId, record.getString("inputPath"), record.getString("outputPath"),
+                        record.optJSONObject("settings") ?: JSONObject(), record.optInt("attempts", 1)
+                    )
+                }
+                "attempt" -> pending[jobId]?.let { it.attempts++ }
+                "completed", "failed", "cancelled" -> {
+                    pending.remove(jobId)
+                    finished.remove(jobId)
+                    finished[jobId] = record
+                }
+            }
+        }
+        while (finished.size > MAX_FINISHED) finished.remove(finished.keys.first())
+    }
+
+    private fun submitRecord(job: QueuedJob): JSONObject = JSONObject()
+        .put("op", "submit")
+        .put("jobId", job.jobId)
+        .put("inputPath", job.inputPath)
+        .put("outputPath", job.outputPath)
+        .put("settings", job.settings)
+        .put("attempts", job.attempts)
+
+    private fun append(record: JSONObject) {
+        file.parentFile?.mkdirs()
+        FileOutputStream(file, true).use { out ->
+            out.write((record.toString() + "\n").toByteArray(Charsets.UTF_8))
+            out.fd.sync()
+        }
+        lineCount++
+    }
+
+    private fun compact() {
+        val temp = File(file.parentFile, "${file.name}.compact")
+        try {
+            FileOutputStream(temp).use { out ->
+                // Outcomes first, so a later resubmit of the same id still wins on load
+                val records = finished.values + pending.values.map { submitRecord(it) }
+                records.forEach { out.write((it.toString() + "\n").toByteArray(Charsets.UTF_8)) }
+                out.fd.sync()
+            }
+            if (!temp.renameTo(file)) throw IllegalStateException("Cannot replace ${file.name}")
+            lineCount = pending.size + finished.size
+        } catch (e: Exception) {
+            temp.delete()
+            Log.w("VideoRecompression", "Job queue compaction failed: ${e.message}")
+        }
+    }
+}
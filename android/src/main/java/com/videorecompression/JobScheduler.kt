@@ -0,0 +1,140 @@
+package com.videorecompression
+
+import android.media.MediaFormat
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import java.util.EnumMap
+import java.util.PriorityQueue
+
+enum class JobKind { PROBE, REWRAP, TRANSCODE }
+
+enum class JobPriority {
+    HIGH, NORMAL, LOW;
+
+    companion object {
+        fun from(value: String?): JobPriority = when (value) {
+            "high" -> HIGH
+            "low" -> LOW
+            else -> NORMAL
+        }
+    }
+}
+
+/**
+ * Bounds how many jobs of each [JobKind] run at once.
+ *
+ * Probing, rewrapping and transcoding contend for different resources (metadata reads, disk
+ * bandwidth, hardware codec instances), so each kind has its own limit. Jobs over the limit suspend
+ * without holding a thread and are admitted by priority, first-come-first-served within a priority.
+ */
+class JobScheduler(private val limits: Map<JobKind, Int>) {
+
+    companion object {
+        private const val PROBE_LIMIT = 4
+        private const val REWRAP_LIMIT = 2
+        private const val DEFAULT_TRANSCODE_LIMIT = 2
+
+        /** Derives the transcode limit from the codec instances the device can actually allocate. */
+        fun create(): JobScheduler {
+            val limits = EnumMap<JobKind, Int>(JobKind::class.java)
+            limits[JobKind.PROBE] = PROBE_LIMIT
+            limits[JobKind.REWRAP] = REWRAP_LIMIT
+            limits[JobKind.TRANSCODE] = transcodeLimit()
+            Log.d("VideoRecompression", "Job limits: $limits")
+            return JobScheduler(limits)
+        }
+
+        private fun transcodeLimit(): Int {
+            return try {
+                // Each transcode holds one video decoder and one video encoder
+                val instances = CodecCatalog.maxSupportedInstances(MediaFormat.MIMETYPE_VIDEO_AVC)
+                    ?: return DEFAULT_TRANSCODE_LIMIT
+                // Reported instance counts are upper bounds; the CPU feeding the GL stage caps it too
+                val cpuLimit = maxOf(1, Runtime.getRuntime().availableProcessors() / 2)
+                minOf(instances, cpuLimit).coerceAtLeast(1)
+            } catch (e: Exception) {
+                Log.w("VideoRecompression", "Could not query codec instances: ${e.message}")
+                DEFAULT_TRANSCODE_LIMIT
+            }
+        }
+    }
+
+    private class Waiter(val priority: JobPriority, val sequence: Long) {
+        val permit = CompletableDeferred<Unit>()
+    }
+
+    private val lock = Any()
+    private val running = EnumMap<JobKind, Int>(JobKind::class.java)
+    private val waiting = EnumMap<JobKind, PriorityQueue<Waiter>>(JobKind::class.java)
+    private var sequence = 0L
+
+    init {
+        for (kind in JobKind.values()) {
+            running[kind] = 0
+            waiting[kind] = PriorityQueue(compareBy<Waiter>({ it.priority.ordinal }, { it.sequence }))
+        }
+    }
+
+    fun limit(kind: JobKind): Int = limits.getValue(kind)
+
+    /** Runs [block] once a slot for [kind] is free. */
+    suspend fun <T> run(kind: JobKind, priority: JobPriority, block: suspend () -> T): T {
+        acquire(kind, priority)
+        try {
+            return block()
+        } finally {
+            synchronized(lock) { releaseLocked(kind) }
+        }
+    }
+
+    /**
+     * Takes up to [count] free slots of [kind] without waiting, for work that fans out inside a job
+     * already holding one. Never takes a slot a queued job is waiting for. Returns how many were
+     * taken; give them back with [release].
+     */
+    fun tryAcquire(kind: JobKind, count: Int): Int = synchronized(lock) {
+        if (waiting.getValue(kind).isNotEmpty()) return 0
+        val taken = minOf(count, limits.getValue(kind) - running.getValue(kind)).coerceAtLeast(0)
+        running[kind] = running.getValue(kind) + taken
+        taken
+    }
+
+    fun release(kind: JobKind, count: Int) {
+        synchronized(lock) { repeat(count) { releaseLocked(kind) } }
+    }
+
+    private suspend fun acquire(kind: JobKind, priority: JobPriority) {
+        val waiter = synchronized(lock) {
+            val queue = waiting.getValue(kind)
+            if (queue.isEmpty() && running.getValue(kind) < limits.getValue(kind)) {
+                running[kind] = running.getValue(kind) + 1
+                return
+            }
+            Waiter(priority, sequence++).also {
+                queue.add(it)
+                Log.d("VideoRecompression", "Queued $kind job ($priority), ${queue.size} waiting")
+            }
+        }
+
+        try {
+            waiter.permit.await()
+        } catch (e: CancellationException) {
+            synchronized(lock) {
+                // The slot may have been handed over just before the cancellation; pass it on
+                if (!waiting.getValue(kind).remove(waiter)) releaseLocked(kind)
+            }
+            throw e
+        }
+    }
+
+    private fun releaseLocked(kind: JobKind) {
+        val next = waiting.getValue(kind).poll()
+        if (next != null) {
+            // The slot moves straight to the next job, so the running count stays the same
+            next.permit.complete(Unit)
+        } else {
+            running[kind] = running.getValue(kind) - 1
+        }
+    }
+}
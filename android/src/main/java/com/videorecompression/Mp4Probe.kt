@@ -0,0 +1,503 @@
+package com.videorecompression
+
+import android.util.Log
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+data class Mp4Track(
+    val trackId: Int,
+    val handler: String,
+    val sampleEntry: String,
+    val codec: String,
+    val width: Int,
+    val height: Int,
+    val rotation: Int,
+    val timescale: Long,
+    val duration: Long,
+    val sampleCount: Int,
+    val declaredBitrate: Int,
+    val totalSampleBytes: Long,
+    val sampleDurationSum: Long,
+    val minSampleDelta: Long
+) {
+    val isVideo: Boolean get() = handler == "vide"
+    val isAudio: Boolean get() = handler == "soun"
+    val durationSeconds: Double get() = if (timescale > 0) duration.toDouble() / timescale else 0.0
+
+    /** Media time covered by the samples (stts), which ignores edit lists unlike mdhd. */
+    val mediaSeconds: Double
+        get() = if (timescale > 0 && sampleDurationSum > 0) sampleDurationSum.toDouble() / timescale else durationSeconds
+
+    /** Exact average bitrate from the stsz payload sizes; falls back to btrt/esds when absent. */
+    val bitrate: Int
+        get() = if (totalSampleBytes > 0 && mediaSeconds > 0) {
+            (totalSampleBytes * 8 / mediaSeconds).toInt()
+        } else {
+            declaredBitrate
+        }
+
+    val averageFrameRate: Double
+        get() = if (sampleDurationSum > 0) sampleCount * timescale.toDouble() / sampleDurationSum else 0.0
+
+    val peakFrameRate: Double
+        get() = if (minSampleDelta > 0) timescale.toDouble() / minSampleDelta else averageFrameRate
+}
+
+data class Mp4Info(
+    val majorBrand: String,
+    val timescale: Long,
+    val duration: Long,
+    val moovOffset: Long,
+    val moovSize: Long,
+    val tracks: List<Mp4Track>
+) {
+    val durationSeconds: Double
+        get() {
+            val movieDuration = if (timescale > 0) duration.toDouble() / timescale else 0.0
+            return if (movieDuration > 0) movieDuration else tracks.maxOfOrNull { it.durationSeconds } ?: 0.0
+        }
+
+    val videoTrack: Mp4Track? get() = tracks.firstOrNull { it.isVideo }
+    val audioTrack: Mp4Track? get() = tracks.firstOrNull { it.isAudio }
+}
+
+/** Header of a top-level box: type, file offset, header length (8, or 16 for a 64-bit size) and total size. */
+data class Mp4Box(val type: String, val offset: Long, val headerSize: Int, val size: Long)
+
+/**
+ * Pure-Kotlin ISO-BMFF (MP4/MOV/3GP) probe.
+ *
+ * Only the top-level box headers, `ftyp` and `moov` are read: box headers are fetched with
+ * positional FileChannel reads, `moov` is memory-mapped, and `mdat` is never touched. This avoids
+ * spinning up the native MediaMetadataRetriever/MediaExtractor parsers for every probe.
+ */
+object Mp4Probe {
+
+    private const val MAX_MOOV_SIZE = 64L * 1024 * 1024
+
+    /**
+     * Returns the parsed movie header, or null when the file is not ISO-BMFF or has no `moov`
+     * (e.g. WebM, AVI, or a truncated recording). Callers should fall back to MediaExtractor then.
+     */
+    fun probe(file: File): Mp4Info? {
+        RandomAccessFile(file, "r").use { raf ->
+            return probe(raf.channel)
+        }
+    }
+
+    fun probe(channel: FileChannel): Mp4Info? {
+        val fileSize = channel.size()
+        val header = ByteBuffer.allocate(16)
+        var position = 0L
+        var majorBrand: String? = null
+
+        while (position + 8 <= fileSize) {
+            header.clear()
+            val read = readAt(channel, header, position)
+            if (read < 8) break
+
+            var boxSize = header.getInt(0).toLong() and 0xFFFFFFFFL
+            val type = fourCc(header, 4)
+            if (position == 0L && type != "ftyp" && !isKnownTopLevelBox(type)) {
+                // Not an ISO-BMFF file
+                return null
+            }
+
+            var headerSize = 8
+            if (boxSize == 1L) {
+                if (read < 16) break
+                boxSize = header.getLong(8)
+                headerSize = 16
+            } else if (boxSize == 0L) {
+                boxSize = fileSize - position
+            }
+            if (boxSize < headerSize || position + boxSize > fileSize) {
+                Log.w("VideoRecompression", "Mp4Probe: malformed box '$type' at $position")
+                break
+            }
+
+            when (type) {
+                "ftyp" -> if (read >= 12) majorBrand = fourCc(header, 8)
+                "moov" -> {
+                    if (boxSize > MAX_MOOV_SIZE) {
+                        Log.w("VideoRecompression", "Mp4Probe: moov too large ($boxSize bytes)")
+                        return null
+                    }
+                    val moov = channel.map(FileChannel.MapMode.READ_ONLY, position, boxSize)
+                    return parseMoov(moov, headerSize, boxSize.toInt(), majorBrand ?: "qt  ", position, boxSize)
+                }
+            }
+            position += boxSize
+        }
+        return null
+    }
+
+    /**
+     * Headers of all top-level boxes in file order, or null when a box is malformed or runs past
+     * the end of the file. Only the headers are read.
+     */
+    fun topLevelBoxes(channel: FileChannel): List<Mp4Box>? {
+        val fileSize = channel.size()
+        val header = ByteBuffer.allocate(16)
+        val boxes = mutableListOf<Mp4Box>()
+        var position = 0L
+
+        while (position + 8 <= fileSize) {
+            header.clear()
+            val read = readAt(channel, header, position)
+            if (read < 8) return null
+
+            var boxSize = header.getInt(0).toLong() and 0xFFFFFFFFL
+            val type = fourCc(header, 4)
+            var headerSize = 8
+            if (boxSize == 1L) {
+                if (read < 16) return null
+                boxSize = header.getLong(8)
+                headerSize = 16
+            } else if (boxSize == 0L) {
+                boxSize = fileSize - position
+            }
+            if (boxSize < headerSize || position + boxSize > fileSize) {
+                Log.w("VideoRecompression", "Mp4Probe: malformed box '$type' at $position")
+                return null
+            }
+            boxes.add(Mp4Box(type, position, headerSize, boxSize))
+            position += boxSize
+        }
+        return boxes
+    }
+
+    private fun isKnownTopLevelBox(type: String): Boolean {
+        // QuickTime files may omit ftyp and start with any of these
+        return type == "moov" || type == "mdat" || type == "wide" || type == "free" || type == "skip"
+    }
+
+    private fun parseMoov(
+        buf: ByteBuffer, start: Int, end: Int, majorBrand: String, moovOffset: Long, moovSize: Long
+    ): Mp4Info {
+        var timescale = 0L
+        var duration = 0L
+        val tracks = mutableListOf<Mp4Track>()
+
+        forEachChild(buf, start, end) { type, payload, boxEnd ->
+            when (type) {
+                "mvhd" -> {
+                    val version = buf.get(payload).toInt()
+                    if (version == 1) {
+                        timescale = uint32(buf, payload + 20)
+                        duration = buf.getLong(payload + 24)
+                    } else {
+                        timescale = uint32(buf, payload + 12)
+                        duration = uint32(buf, payload + 16)
+                    }
+                }
+                "trak" -> parseTrak(buf, payload, boxEnd)?.let { tracks.add(it) }
+            }
+        }
+
+        return Mp4Info(majorBrand, timescale, duration, moovOffset, moovSize, tracks)
+    }
+
+    private fun parseTrak(buf: ByteBuffer, start: Int, end: Int): Mp4Track? {
+        val track = TrackBuilder()
+
+        forEachChild(buf, start, end) { type, payload, boxEnd ->
+            when (type) {
+                "tkhd" -> {
+                    val version = buf.get(payload).toInt()
+                    track.trackId = buf.getInt(payload + if (version == 1) 20 else 12)
+                    val matrixOffset = payload + if (version == 1) 52 else 40
+                    if (matrixOffset + 36 <= boxEnd) {
+                        track.rotation = rotationFromMatrix(buf, matrixOffset)
+                    }
+                    val sizeOffset = payload + if (version == 1) 88 else 76
+                    if (sizeOffset + 8 <= boxEnd) {
+                        track.width = buf.getInt(sizeOffset) ushr 16
+                        track.height = buf.getInt(sizeOffset + 4) ushr 16
+                    }
+                }
+                "mdia" -> parseMdia(buf, payload, boxEnd, track)
+            }
+        }
+
+        return if (track.handler.isEmpty()) null else track.build()
+    }
+
+    private fun parseMdia(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        forEachChild(buf, start, end) { type, payload, boxEnd ->
+            when (type) {
+                "mdhd" -> {
+                    val version = buf.get(payload).toInt()
+                    if (version == 1) {
+                        track.timescale = uint32(buf, payload + 20)
+                        track.duration = buf.getLong(payload + 24)
+                    } else {
+                        track.timescale = uint32(buf, payload + 12)
+                        track.duration = uint32(buf, payload + 16)
+                    }
+                }
+                "hdlr" -> track.handler = fourCc(buf, payload + 8)
+                "minf" -> forEachChild(buf, payload, boxEnd) { minfType, minfPayload, minfEnd ->
+                    if (minfType == "stbl") parseStbl(buf, minfPayload, minfEnd, track)
+                }
+            }
+        }
+    }
+
+    private fun parseStbl(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        forEachChild(buf, start, end) { type, payload, boxEnd ->
+            when (type) {
+                "stsd" -> parseStsd(buf, payload, boxEnd, track)
+                "stsz" -> parseStsz(buf, payload, boxEnd, track)
+                "stz2" -> parseStz2(buf, payload, boxEnd, track)
+                "stts" -> parseStts(buf, payload, boxEnd, track)
+            }
+        }
+    }
+
+    private fun parseStsz(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        val sampleSize = uint32(buf, start + 4)
+        val sampleCount = buf.getInt(start + 8)
+        track.sampleCount = sampleCount
+        if (sampleSize != 0L) {
+            track.totalSampleBytes = sampleSize * sampleCount
+            return
+        }
+        var total = 0L
+        var pos = start + 12
+        val limit = minOf(end, pos + sampleCount * 4)
+        while (pos + 4 <= limit) {
+            total += uint32(buf, pos)
+            pos += 4
+        }
+        track.totalSampleBytes = total
+    }
+
+    private fun parseStz2(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        val fieldSize = buf.get(start + 7).toInt() and 0xFF
+        val sampleCount = buf.getInt(start + 8)
+        track.sampleCount = sampleCount
+        var total = 0L
+        val entriesStart = start + 12
+        for (i in 0 until sampleCount) {
+            total += when (fieldSize) {
+                4 -> {
+                    val index = entriesStart + i / 2
+                    if (index >= end) break
+                    val b = buf.get(index).toInt()
+                    (if (i % 2 == 0) b ushr 4 else b) and 0x0F
+                }
+                8 -> {
+                    if (entriesStart + i >= end) break
+                    buf.get(entriesStart + i).toInt() and 0xFF
+                }
+                16 -> {
+                    if (entriesStart + i * 2 + 2 > end) break
+                    buf.getShort(entriesStart + i * 2).toInt() and 0xFFFF
+                }
+                else -> break
+            }.toLong()
+        }
+        track.totalSampleBytes = total
+    }
+
+    private fun parseStts(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        val entryCount = buf.getInt(start + 4)
+        var durationSum = 0L
+        var minDelta = Long.MAX_VALUE
+        for (i in 0 until entryCount) {
+            val pos = start + 8 + i * 8
+            if (pos + 8 > end) break
+            val count = uint32(buf, pos)
+            val delta = uint32(buf, pos + 4)
+            durationSum += count * delta
+            // Muxers often close the table with a single short sample; it says nothing about the
+            // real frame cadence, so keep it out of the peak estimate
+            val trailingSingle = i == entryCount - 1 && count == 1L && entryCount > 1
+            if (delta > 0 && !trailingSingle) minDelta = minOf(minDelta, delta)
+        }
+        track.sampleDurationSum = durationSum
+        track.minSampleDelta = if (minDelta == Long.MAX_VALUE) 0L else minDelta
+    }
+
+    private fun parseStsd(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        // Only the first sample entry matters for codec detection
+        val entryStart = start + 8
+        if (entryStart + 8 > end) return
+        val entrySize = buf.getInt(entryStart)
+        val entryEnd = minOf(end, entryStart + entrySize)
+        val format = fourCc(buf, entryStart + 4)
+        track.sampleEntry = format
+
+        when (track.handler) {
+            "vide" -> {
+                if (entryStart + 36 <= entryEnd) {
+                    track.entryWidth = buf.getShort(entryStart + 32).toInt() and 0xFFFF
+                    track.entryHeight = buf.getShort(entryStart + 34).toInt() and 0xFFFF
+                }
+                track.codec = videoCodecFor(format)
+                forEachChild(buf, entryStart + 86, entryEnd) { type, payload, _ ->
+                    if (type == "btrt") track.declaredBitrate = buf.getInt(payload + 8)
+                }
+            }
+            "soun" -> {
+                // QuickTime sound sample description versions 1 and 2 extend the base entry
+                val soundVersion = buf.getShort(entryStart + 16).toInt()
+                val childStart = entryStart + when (soundVersion) {
+                    1 -> 52
+                    2 -> 72
+                    else -> 36
+                }
+                track.codec = audioCodecFor(format)
+                forEachChild(buf, childStart, entryEnd) { type, payload, boxEnd ->
+                    when (type) {
+                        "esds" -> parseEsds(buf, payload + 4, boxEnd, track)
+                        "btrt" -> track.declaredBitrate = buf.getInt(payload + 8)
+                        "wave" -> forEachChild(buf, payload, boxEnd) { waveType, wavePayload, waveEnd ->
+                            if (waveType == "esds") parseEsds(buf, wavePayload + 4, waveEnd, track)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private fun parseEsds(buf: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        var pos = start
+        while (pos + 2 <= end) {
+            val tag = buf.get(pos).toInt() and 0xFF
+            pos++
+            var length = 0
+            for (i in 0 until 4) {
+                val b = buf.get(pos++).toInt() and 0xFF
+                length = (length shl 7) or (b and 0x7F)
+                if (b and 0x80 == 0) break
+            }
+            when (tag) {
+                0x03 -> {
+                    // ES_Descriptor: skip ES_ID and optional fields, then descend
+                    val flags = buf.get(pos + 2).toInt() and 0xFF
+                    pos += 3
+                    if (flags and 0x80 != 0) pos += 2
+                    if (flags and 0x40 != 0) pos += 1 + (buf.get(pos).toInt() and 0xFF)
+                    if (flags and 0x20 != 0) pos += 2
+                }
+                0x04 -> {
+                    if (pos + 13 > end) return
+                    val objectType = buf.get(pos).toInt() and 0xFF
+                    if (objectType == 0x69 || objectType == 0x6B) track.codec = "mp3"
+                    val avgBitrate = buf.getInt(pos + 9)
+                    if (avgBitrate > 0) track.declaredBitrate = avgBitrate
+                    return
+                }
+                else -> pos += length
+            }
+        }
+    }
+
+    private fun videoCodecFor(format: String): String = when (format) {
+        "avc1", "avc3" -> "h264"
+        "hvc1", "hev1" -> "hevc"
+        "vp08" -> "vp8"
+        "vp09" -> "vp9"
+        "av01" -> "av1"
+        "mp4v" -> "mpeg4"
+        "s263", "h263" -> "h263"
+        else -> "unknown"
+    }
+
+    private fun audioCodecFor(format: String): String = when (format) {
+        "mp4a" -> "aac"
+        ".mp3", "ms\u0000U" -> "mp3"
+        "Opus" -> "opus"
+        "fLaC" -> "flac"
+        "samr", "sawb" -> "amr"
+        "ac-3" -> "ac3"
+        "ec-3" -> "eac3"
+        "sowt", "twos", "lpcm", "in24", "in32", "fl32" -> "pcm"
+        else -> "unknown"
+    }
+
+    private inline fun forEachChild(
+        buf: ByteBuffer, start: Int, end: Int, action: (type: String, payload: Int, boxEnd: Int) -> Unit
+    ) {
+        var pos = start
+        while (pos + 8 <= end) {
+            var size = uint32(buf, pos)
+            var headerSize = 8
+            if (size == 1L) {
+                if (pos + 16 > end) return
+                size = buf.getLong(pos + 8)
+                headerSize = 16
+            } else if (size == 0L) {
+                size = (end - pos).toLong()
+            }
+            if (size < headerSize || pos + size > end) return
+            action(fourCc(buf, pos + 4), pos + headerSize, (pos + size).toInt())
+            pos += size.toInt()
+        }
+    }
+
+    private fun readAt(channel: FileChannel, buffer: ByteBuffer, position: Long): Int {
+        var total = 0
+        while (buffer.hasRemaining()) {
+            val n = channel.read(buffer, position + total)
+            if (n < 0) break
+            total += n
+        }
+        return total
+    }
+
+    /** Maps the tkhd display matrix to clockwise degrees; only the four exact rotations are recognized. */
+    private fun rotationFromMatrix(buf: ByteBuffer, index: Int): Int {
+        val fixedOne = 0x10000
+        val a = buf.getInt(index)
+        val b = buf.getInt(index + 4)
+        val c = buf.getInt(index + 12)
+        val d = buf.getInt(index + 16)
+        return when {
+            a == 0 && b == fixedOne && c == -fixedOne && d == 0 -> 90
+            a == -fixedOne && b == 0 && c == 0 && d == -fixedOne -> 180
+            a == 0 && b == -fixedOne && c == fixedOne && d == 0 -> 270
+            else -> 0
+        }
+    }
+
+    private fun uint32(buf: ByteBuffer, index: Int): Long = buf.getInt(index).toLong() and 0xFFFFFFFFL
+
+    private fun fourCc(buf: ByteBuffer, index: Int): String {
+        val chars = CharArray(4) { (buf.get(index + it).toInt() and 0xFF).toChar() }
+        return String(chars)
+    }
+
+    private class TrackBuilder {
+        var trackId = 0
+        var handler = ""
+        var sampleEntry = ""
+        var codec = "unknown"
+        var width = 0
+        var height = 0
+        var rotation = 0
+        var entryWidth = 0
+        var entryHeight = 0
+        var timescale = 0L
+        var duration = 0L
+        var sampleCount = 0
+        var declaredBitrate = 0
+        var totalSampleBytes = 0L
+        var sampleDurationSum = 0L
+        var minSampleDelta = 0L
+
+        fun build(): Mp4Track {
+            // tkhd carries the presentation size; fall back to the coded size in the sample entry
+            val w = if (width > 0) width else entryWidth
+            val h = if (height > 0) height else entryHeight
+            return Mp4Track(
+                trackId, handler, sampleEntry, codec, w, h, rotation, timescale, duration, sampleCount, declaredBitrate,
+                totalSampleBytes, sampleDurationSum, minSampleDelta
+            )
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.os.Build
+import android.util.Log
+import com.facebook.react.bridge.WritableMap
+import com.facebook.react.bridge.WritableNativeMap
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * Statistics gathered while samples are written to a [SampleWriter].
+ *
+ * processVideo builds `finalInfo` from these instead of re-probing the file it just wrote. A running
+ * CRC32 over every sample payload and per-track sample counts double as a streaming integrity check.
+ * Every written sample is also reported to [progress], if any.
+ *
+ * Timestamps are written [timeOffsetUs] earlier than they arrive, so a trimmed output starts at zero.
+ * A job resumed from [resumeFrom] starts each track with the counts the interrupted run committed;
+ * the checksum only covers this run.
+ */
+class MuxStats(
+    private val progress: ProgressReporter? = null,
+    private val timeOffsetUs: Long = 0L,
+    private val resumeFrom: ResumeJournal.Checkpoint? = null
+) {
+
+    class TrackStats(val format: MediaFormat, val expectedSamples: Int) {
+        var sampleCount = 0
+        var bytes = 0L
+        var firstPtsUs = Long.MAX_VALUE
+        var lastPtsUs = Long.MIN_VALUE
+
+        val mime: String get() = format.getString(MediaFormat.KEY_MIME) ?: ""
+
+        /** Span of the written samples, extended by one average frame interval to cover the last sample. */
+        val durationUs: Long
+            get() {
+                if (sampleCount == 0) return 0L
+                val span = lastPtsUs - firstPtsUs
+                return if (sampleCount > 1) span + span / (sampleCount - 1) else span
+            }
+
+        val bitrate: Int
+            get() = if (durationUs > 0) (bytes * 8 * 1_000_000L / durationUs).toInt() else 0
+    }
+
+    private val tracks = mutableMapOf<Int, TrackStats>()
+    private val crc = CRC32()
+    private var scratch = ByteArray(0)
+    private val shiftedInfo = MediaCodec.BufferInfo()
+
+    val sampleCount: Int get() = tracks.values.sumOf { it.sampleCount }
+
+    /** Sample payload bytes written to all tracks, including those committed before a resume. */
+    val bytesWritten: Long get() = tracks.values.sumOf { it.bytes }
+
+    /** CRC32 of all sample payloads in write order, as 8 hex digits. */
+    val checksum: String get() = String.format("%08x", crc.value)
+
+    fun addTrack(muxer: SampleWriter, format: MediaFormat, expectedSamples: Int = -1): Int {
+        val trackIndex = muxer.addTrack(format)
+        tracks[trackIndex] = TrackStats(format, expectedSamples).apply {
+            resumeFrom?.tracks?.getOrNull(trackIndex)?.takeIf { it.sampleCount > 0 }?.let { committed ->
+                sampleCount = committed.sampleCount
+                bytes = committed.bytes
+                firstPtsUs = committed.firstPtsUs
+                lastPtsUs = committed.lastPtsUs
+            }
+        }
+        return trackIndex
+    }
+
+    fun writeSample(muxer: SampleWriter, trackIndex: Int, buffer: ByteBuffer, sourceInfo: MediaCodec.BufferInfo) {
+        val info = if (timeOffsetUs == 0L) {
+            sourceInfo
+        } else {
+            shiftedInfo.apply {
+                set(sourceInfo.offset, sourceInfo.size, sourceInfo.presentationTimeUs - timeOffsetUs, sourceInfo.flags)
+            }
+        }
+        muxer.writeSampleData(trackIndex, buffer, info)
+
+        val stats = tracks[trackIndex] ?: return
+        stats.sampleCount++
+        stats.bytes += info.size
+        stats.firstPtsUs = minOf(stats.firstPtsUs, info.presentationTimeUs)
+        stats.lastPtsUs = maxOf(stats.lastPtsUs, info.presentationTimeUs)
+        updateChecksum(buffer, info.offset, info.size)
+        progress?.onSample(info.presentationTimeUs, info.size, stats.mime.startsWith("video/"))
+    }
+
+    /** Tracks with a known source sample count that lost or gained samples, one message each. */
+    val sampleCountMismatches: List<String>
+        get() = tracks.values
+            .filter { it.expectedSamples >= 0 && it.sampleCount != it.expectedSamples }
+            .map { "${it.mime}: wrote ${it.sampleCount}, expected ${it.expectedSamples}" }
+
+    /**
+     * Logs [sampleCountMismatches] once the output is complete. The file is still playable, so a
+     * mismatch is reported in the result rather than failing the job.
+     */
+    fun checkSampleCounts() {
+        sampleCountMismatches.forEach { Log.w("VideoRecompression", "Sample count mismatch for $it") }
+    }
+
+    fun toVideoInfo(outputPath: String, fileSize: Long): WritableMap {
+        val video = tracks.values.firstOrNull { it.mime.startsWith("video/") }
+        val audio = tracks.values.firstOrNull { it.mime.startsWith("audio/") }
+        val durationUs = tracks.values.maxOfOrNull { it.durationUs } ?: 0L
+        val frameRate = video?.let {
+            if (it.durationUs > 0) it.sampleCount * 1_000_000.0 / it.durationUs else 0.0
+        } ?: 0.0
+
+        return WritableNativeMap().apply {
+            putString("container", outputPath.substringAfterLast('.', "unknown").lowercase())
+            putString("videoCodec", video?.let { videoCodecFromMime(it.mime) } ?: "unknown")
+            putString("audioCodec", audio?.let { audioCodecFromMime(it.mime) } ?: "none")
+            putInt("width", video?.format?.let { intOrZero(it, MediaFormat.KEY_WIDTH) } ?: 0)
+            putInt("height", video?.format?.let { intOrZero(it, MediaFormat.KEY_HEIGHT) } ?: 0)
+            putDouble("duration", durationUs / 1_000_000.0)
+            putInt("videoBitrate", video?.bitrate ?: 0)
+            putInt("audioBitrate", audio?.bitrate ?: 0)
+            putDouble("frameRate", frameRate)
+            putDouble("peakFrameRate", frameRate)
+            putDouble("fileSize", fileSize.toDouble())
+        }
+    }
+
+    private fun updateChecksum(buffer: ByteBuffer, offset: Int, size: Int) {
+        if (size <= 0) return
+        val view = buffer.duplicate()
+        view.limit(offset + size)
+        view.position(offset)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            crc.update(view)
+        } else {
+            if (scratch.size < size) scratch = ByteArray(size)
+            view.get(scratch, 0, size)
+            crc.update(scratch, 0, size)
+        }
+    }
+
+    private fun intOrZero(format: MediaFormat, key: String): Int {
+        return if (format.containsKey(key)) format.getInteger(key) else 0
+    }
+}
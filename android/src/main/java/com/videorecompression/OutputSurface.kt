@@ -0,0 +1,69 @@
+package com.videorecompression
+
+import android.graphics.SurfaceTexture
+import android.os.Handler
+import android.os.HandlerThread
+import android.view.Surface
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Decoder output [Surface] backed by a SurfaceTexture in the current EGL context.
+ *
+ * Must be created while the EGL context that will draw the frames is current, typically right after
+ * [InputSurface.makeCurrent]. Frame-available callbacks arrive on a private HandlerThread so the
+ * wait in [awaitNewImage] never depends on the main looper.
+ */
+class OutputSurface {
+
+    companion object {
+        private const val FRAME_TIMEOUT_MS = 2500L
+    }
+
+    private val textureRender = TextureRender()
+    private val callbackThread = HandlerThread("VideoRecompression-frames").apply { start() }
+    private val frameLock = ReentrantLock()
+    private val frameCondition = frameLock.newCondition()
+    private var frameAvailable = false
+
+    private val surfaceTexture: SurfaceTexture
+    val surface: Surface
+
+    init {
+        textureRender.surfaceCreated()
+        surfaceTexture = SurfaceTexture(textureRender.textureId)
+        surfaceTexture.setOnFrameAvailableListener({
+            frameLock.withLock {
+                frameAvailable = true
+                frameCondition.signalAll()
+            }
+        }, Handler(callbackThread.looper))
+        surface = Surface(surfaceTexture)
+    }
+
+    /** Waits for the frame released by the decoder and latches it into the texture. */
+    fun awaitNewImage() {
+        frameLock.withLock {
+            var remainingNanos = TimeUnit.MILLISECONDS.toNanos(FRAME_TIMEOUT_MS)
+            while (!frameAvailable) {
+                if (remainingNanos <= 0) {
+                    throw IllegalStateException("Timed out waiting for a decoded frame")
+                }
+                remainingNanos = frameCondition.awaitNanos(remainingNanos)
+            }
+            frameAvailable = false
+        }
+        surfaceTexture.updateTexImage()
+    }
+
+    fun drawImage() {
+        textureRender.drawFrame(surfaceTexture)
+    }
+
+    fun release() {
+        surface.release()
+        surfaceTexture.release()
+        callbackThread.quitSafely()
+    }
+}
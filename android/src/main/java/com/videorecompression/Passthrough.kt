@@ -0,0 +1,84 @@
+package com.videorecompression
+
+import android.os.CancellationSignal
+import android.system.ErrnoException
+import android.system.Os
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+
+data class PassthroughResult(
+    val strategy: String,
+    val outputPath: String
+)
+
+/**
+ * Delivers an input file that needs no processing without streaming it through user space.
+ *
+ * Strategies, cheapest first:
+ * - `in_place`: the caller allowed it, so the input path itself is the result
+ * - `hardlink`: input and output live on the same filesystem
+ * - `transfer`: FileChannel.transferTo, which the kernel serves with sendfile
+ */
+object Passthrough {
+
+    // Bounds how long a kernel copy runs between cancellation checks
+    private const val TRANSFER_CHUNK_BYTES = 8L * 1024 * 1024
+
+    fun run(
+        inputPath: String, outputPath: String, allowInPlace: Boolean,
+        cancellation: CancellationSignal? = null
+    ): PassthroughResult {
+        val input = File(inputPath)
+        val output = File(outputPath)
+
+        if (allowInPlace || input.canonicalPath == output.canonicalPath) {
+            return PassthroughResult("in_place", inputPath)
+        }
+
+        if (output.exists() && !output.delete()) {
+            throw IllegalStateException("Cannot replace existing output file: $outputPath")
+        }
+
+        if (sameFilesystem(input, output)) {
+            try {
+                Os.link(input.absolutePath, output.absolutePath)
+                return PassthroughResult("hardlink", outputPath)
+            } catch (e: ErrnoException) {
+                // FUSE-backed shared storage commonly refuses links; fall through to a kernel copy
+                Log.d("VideoRecompression", "Hardlink not possible (${e.message}), using transferTo")
+            }
+        }
+
+        transfer(input, output, cancellation)
+        return PassthroughResult("transfer", outputPath)
+    }
+
+    private fun sameFilesystem(input: File, output: File): Boolean {
+        val outputDir = output.absoluteFile.parentFile ?: return false
+        return try {
+            Os.stat(input.absolutePath).st_dev == Os.stat(outputDir.absolutePath).st_dev
+        } catch (e: ErrnoException) {
+            false
+        }
+    }
+
+    /** Kernel copy of [input] to [output]; unlike a hardlink, later writes to either leave the other intact. */
+    fun transfer(input: File, output: File, cancellation: CancellationSignal?) {
+        FileInputStream(input).channel.use { source ->
+            FileOutputStream(output).channel.use { target ->
+                val size = source.size()
+                var position = 0L
+                while (position < size) {
+                    cancellation?.throwIfCanceled()
+                    val transferred = source.transferTo(position, minOf(size - position, TRANSFER_CHUNK_BYTES), target)
+                    if (transferred <= 0) {
+                        throw IllegalStateException("transferTo stalled at $position of $size bytes")
+                    }
+                    position += transferred
+                }
+            }
+        }
+    }
+}
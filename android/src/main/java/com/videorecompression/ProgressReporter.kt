@@ -0,0 +1,99 @@
+package com.videorecompression
+
+import com.facebook.react.bridge.ReadableMap
+import com.facebook.react.bridge.WritableMap
+import com.facebook.react.bridge.WritableNativeMap
+
+/**
+ * Turns written samples into throttled progress events for one job.
+ *
+ * Progress is the latest written presentation time over the source duration. An event goes out at
+ * most every [minIntervalMs] and only once progress moved by [minStep], so a fast rewrap sends a few
+ * dozen events and a long transcode never floods the bridge. Throughput covers the interval since
+ * the previous event; the ETA extrapolates from the average rate of the whole job.
+ */
+class ProgressReporter(
+    private val jobId: String,
+    private val durationUs: Long,
+    private val minIntervalMs: Long,
+    private val minStep: Double,
+    private val emit: (WritableMap) -> Unit
+) {
+
+    companion object {
+        const val EVENT_NAME = "VideoRecompressionProgress"
+        const val DEFAULT_INTERVAL_MS = 100L
+        const val DEFAULT_STEP = 0.01
+
+        /** Returns null unless the caller asked for progress with `reportProgress`. */
+        fun from(settings: ReadableMap?, jobId: String, durationUs: Long, emit: (WritableMap) -> Unit): ProgressReporter? {
+            if (settings?.hasKey("reportProgress") != true || !settings.getBoolean("reportProgress")) return null
+            val interval = if (settings.hasKey("progressIntervalMs")) settings.getInt("progressIntervalMs").toLong() else DEFAULT_INTERVAL_MS
+            val step = if (settings.hasKey("progressStep")) settings.getDouble("progressStep") else DEFAULT_STEP
+            return ProgressReporter(jobId, durationUs, maxOf(0L, interval), step.coerceIn(0.0, 1.0), emit)
+        }
+    }
+
+    private val startNanos = System.nanoTime()
+    private var lastEmitNanos = startNanos
+    private var lastProgress = 0.0
+    private var positionUs = 0L
+    private var bytes = 0L
+    private var frames = 0L
+    private var lastBytes = 0L
+    private var lastFrames = 0L
+
+    /** Called for every sample handed to the muxer, always from the job's writing thread. */
+    fun onSample(presentationTimeUs: Long, size: Int, isVideo: Boolean) {
+        bytes += size
+        if (isVideo) frames++
+        advance(presentationTimeUs)
+    }
+
+    /**
+     * Reports work done ahead of the muxer, such as parallel segments that are written out only
+     * once all of them finish. Calls must not overlap with each other or with [onSample].
+     */
+    fun onPosition(positionUs: Long) {
+        advance(positionUs)
+    }
+
+    private fun advance(presentationTimeUs: Long) {
+        positionUs = maxOf(positionUs, presentationTimeUs)
+
+        val now = System.nanoTime()
+        if (now - lastEmitNanos < minIntervalMs * 1_000_000L) return
+        val progress = if (durationUs > 0) (positionUs.toDouble() / durationUs).coerceIn(0.0, 0.99) else 0.0
+        if (progress - lastProgress < minStep) return
+        send(progress, now)
+    }
+
+    /** Sends the final event; called once the output is complete. */
+    fun finish() {
+        send(1.0, System.nanoTime())
+    }
+
+    private fun send(progress: Double, now: Long) {
+        val intervalSeconds = (now - lastEmitNanos) / 1e9
+        val elapsedSeconds = (now - startNanos) / 1e9
+        val etaSeconds = when {
+            progress >= 1.0 -> 0.0
+            progress > 0 -> elapsedSeconds * (1 - progress) / progress
+            else -> -1.0
+        }
+
+        emit(WritableNativeMap().apply {
+            putString("jobId", jobId)
+            putDouble("progress", progress)
+            putDouble("bytesPerSecond", if (intervalSeconds > 0) (bytes - lastBytes) / intervalSeconds else 0.0)
+            putDouble("framesPerSecond", if (intervalSeconds > 0) (frames - lastFrames) / intervalSeconds else 0.0)
+            putDouble("etaSeconds", etaSeconds)
+            putDouble("bytesWritten", bytes.toDouble())
+        })
+
+        lastEmitNanos = now
+        lastProgress = progress
+        lastBytes = bytes
+        lastFrames = frames
+    }
+}
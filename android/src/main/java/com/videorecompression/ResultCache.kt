@@ -0,0 +1,122 @@
+package com.videorecompression
+
+import android.os.CancellationSignal
+import android.util.Log
+import com.facebook.react.bridge.ReadableMap
+import com.facebook.react.bridge.WritableMap
+import org.json.JSONObject
+import java.io.File
+import java.security.MessageDigest
+
+/**
+ * Bounded on-disk cache of finished outputs, keyed by the input fingerprint and the settings that
+ * shape the output.
+ *
+ * Each entry is a copy of the output (`<key>.mp4`) next to the result that described it
+ * (`<key>.json`). Entries are copied in and out with a kernel copy rather than hardlinked, because a
+ * later job writing to the same output path would otherwise truncate the cached bytes. The entry's
+ * mtime is its last use; once the entries exceed [maxBytes], the least recently used are evicted.
+ */
+class ResultCache(private val dir: File, private val maxBytes: Long = DEFAULT_MAX_BYTES) {
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 512L * 1024 * 1024
+
+        // Bump when a pipeline change alters the output for the same settings
+        private const val VERSION = 1
+
+        // Settings that change how a job runs or reports, not the bytes it writes
+        private val IGNORED_SETTINGS = setOf(
+            "jobId", "priority", "reportProgress", "progressIntervalMs", "progressStep", "useCache",
+            "resumable", "durable", "fingerprint"
+        )
+    }
+
+    private val lock = Any()
+
+    /** Cache key for [fingerprint] under [settings], independent of key order and ignored settings. */
+    fun keyFor(fingerprint: String, settings: ReadableMap?): String {
+        val normalized = JSONObject()
+        settings?.toHashMap()?.toSortedMap()?.forEach { (key, value) ->
+            if (key !in IGNORED_SETTINGS) normalized.put(key, JSONObject.wrap(value))
+        }
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("v$VERSION\n$fingerprint\n$normalized".toByteArray(Charsets.UTF_8))
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    /**
+     * Copies the entry for [key] to [outputPath] and returns the stored result, or null on a miss.
+     * [beforeWrite] runs just before the output file is replaced. The caller fills in the per-job
+     * fields.
+     */
+    fun restore(
+        key: String, outputPath: String, cancellation: CancellationSignal?, beforeWrite: () -> Unit = {}
+    ): WritableMap? {
+        val (data, meta) = synchronized(lock) {
+            val data = File(dir, "$key.mp4")
+            val meta = File(dir, "$key.json")
+            if (!data.exists() || !meta.exists()) return null
+            // Marks the entry as recently used before eviction can see it
+            data.setLastModified(System.currentTimeMillis())
+            data to meta
+        }
+        return try {
+            val result = BridgeJson.fromJson(JSONObject(meta.readText()))
+            beforeWrite()
+            File(outputPath).delete()
+            Passthrough.transfer(data, File(outputPath), cancellation)
+            result
+        } catch (e: Exception) {
+            cancellation?.throwIfCanceled()
+            // Evicted while copying, or a damaged entry; recompute instead. The job then writes the
+            // output itself, and its failure cleanup covers a partial copy
+            Log.w("VideoRecompression", "Cache entry $key unusable: ${e.message}")
+            remove(key)
+            null
+        }
+    }
+
+    /** Stores the output at [outputPath] and its [result]; failures only cost the cache entry. */
+    fun store(key: String, outputPath: String, result: ReadableMap) {
+        val output = File(outputPath)
+        if (output.length() > maxBytes) return
+        try {
+            dir.mkdirs()
+            val tempData = File(dir, "$key.mp4.tmp")
+            val tempMeta = File(dir, "$key.json.tmp")
+            Passthrough.transfer(output, tempData, null)
+            tempMeta.writeText(BridgeJson.toJson(result).toString())
+            synchronized(lock) {
+                // Data last, so an entry is only visible once both files are in place
+                if (!tempMeta.renameTo(File(dir, "$key.json")) || !tempData.renameTo(File(dir, "$key.mp4"))) {
+                    tempData.delete()
+                    tempMeta.delete()
+                    throw IllegalStateException("Cannot publish cache entry")
+                }
+                evict()
+            }
+        } catch (e: Exception) {
+            Log.w("VideoRecompression", "Could not cache output $outputPath: ${e.message}")
+        }
+    }
+
+    private fun remove(key: String) {
+        synchronized(lock) {
+            File(dir, "$key.mp4").delete()
+            File(dir, "$key.json").delete()
+        }
+    }
+
+    private fun evict() {
+        val entries = dir.listFiles { file -> file.name.endsWith(".mp4") }?.sortedBy { it.lastModified() } ?: return
+        var total = entries.sumOf { it.length() }
+        for (entry in entries) {
+            if (total <= maxBytes) break
+            total -= entry.length()
+            entry.delete()
+            File(dir, entry.name.removeSuffix(".mp4") + ".json").delete()
+            Log.d("VideoRecompression", "Evicted cache entry ${entry.name}")
+        }
+    }
+}
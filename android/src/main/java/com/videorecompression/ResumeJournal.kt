@@ -0,0 +1,118 @@
+package com.videorecompression
+
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+
+/** The resumed run cannot continue the interrupted output and has to start over. */
+class ResumeMismatchException(message: String) : IllegalStateException(message)
+
+/**
+ * Checkpoint journal that lets an interrupted fragmented-MP4 job continue where it stopped.
+ *
+ * The journal lives next to the output (`<output>.journal`) and is append-only text: a header line
+ * with the job key (input fingerprint and output settings), then one line per committed fragment.
+ * [FragmentedMp4Writer] forces each fragment to disk before it is journaled, and each line is
+ * synced on its own, so after a crash the last complete line describes bytes that are really on
+ * disk. A torn last line is ignored.
+ *
+ * Codec state cannot be saved, so a resume restarts decoding at the input sync sample before
+ * [Checkpoint.resumeUs] and the encoder at a fresh keyframe there. The resumed encoder must
+ * produce the same init segment, which the writer checks before appending.
+ */
+class ResumeJournal private constructor(
+    private val file: File,
+    private val key: String,
+    /** Checkpoints of the interrupted run in fragment order, empty when there is nothing to resume. */
+    val committed: List<Checkpoint> = emptyList()
+) {
+
+    /** Writer state after one track's last committed sample. */
+    class TrackCheckpoint(
+        val lastDts: Long,
+        val lastDuration: Long,
+        val firstPtsUs: Long,
+        val lastPtsUs: Long,
+        val sampleCount: Int,
+        val bytes: Long
+    )
+
+    /**
+     * Output state after fragment [sequenceNumber]: the file is valid up to [outputLength], and
+     * the next fragment starts with the sample at [resumeUs] (output timeline).
+     */
+    class Checkpoint(
+        val sequenceNumber: Int,
+        val outputLength: Long,
+        val resumeUs: Long,
+        val tracks: List<TrackCheckpoint>
+    ) {
+        /** Where sources have to restart so that no sample after a track's last committed one is missed. */
+        val restartUs: Long
+            get() = tracks.filter { it.sampleCount > 0 }.minOfOrNull { it.lastPtsUs + 1 }?.let { minOf(it, resumeUs) } ?: 0L
+    }
+
+    companion object {
+        private const val HEADER = "journal1"
+
+        fun fileFor(outputPath: String): File = File("$outputPath.journal")
+
+        /**
+         * Opens the journal for [outputPath]. A journal written for a different [key] is discarded.
+         * The returned checkpoint is null when there is nothing to resume or the output no longer
+         * holds the journaled bytes.
+         */
+        fun open(outputPath: String, key: String): Pair<ResumeJournal, Checkpoint?> {
+            val file = fileFor(outputPath)
+            val lines = if (file.exists()) file.readLines() else emptyList()
+            if (lines.firstOrNull() != "$HEADER $key") {
+                file.delete()
+                return ResumeJournal(file, key) to null
+            }
+            val checkpoints = lines.drop(1).mapNotNull { parse(it) }
+            val checkpoint = checkpoints.lastOrNull()
+            if (checkpoint == null || File(outputPath).length() < checkpoint.outputLength) {
+                file.delete()
+                return ResumeJournal(file, key) to null
+            }
+            Log.d("VideoRecompression", "Resuming $outputPath after fragment ${checkpoint.sequenceNumber}")
+            return ResumeJournal(file, key, checkpoints) to checkpoint
+        }
+
+        private fun parse(line: String): Checkpoint? {
+            val fields = line.split(' ')
+            if (fields.size < 5 || fields[0] != "fragment" || fields.last() != "end") return null
+            return try {
+                val tracks = fields.subList(4, fields.size - 1).map { group ->
+                    val values = group.split(',').map { it.toLong() }
+                    TrackCheckpoint(values[0], values[1], values[2], values[3], values[4].toInt(), values[5])
+                }
+                Checkpoint(fields[1].toInt(), fields[2].toLong(), fields[3].toLong(), tracks)
+            } catch (e: Exception) {
+                // Torn write from a crash
+                null
+            }
+        }
+    }
+
+    /** Appends a checkpoint and syncs it; the header goes first when the journal is new. */
+    fun record(checkpoint: Checkpoint) {
+        val line = buildString {
+            if (!file.exists() || file.length() == 0L) append("$HEADER $key\n")
+            append("fragment ${checkpoint.sequenceNumber} ${checkpoint.outputLength} ${checkpoint.resumeUs}")
+            checkpoint.tracks.forEach { track ->
+                append(" ${track.lastDts},${track.lastDuration},${track.firstPtsUs},${track.lastPtsUs},${track.sampleCount},${track.bytes}")
+            }
+            append(" end\n")
+        }
+        FileOutputStream(file, true).use { out ->
+            out.write(line.toByteArray(Charsets.US_ASCII))
+            out.fd.sync()
+        }
+    }
+
+    /** Drops the journal once the output is complete. */
+    fun delete() {
+        file.delete()
+    }
+}
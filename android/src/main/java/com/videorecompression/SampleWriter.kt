@@ -0,0 +1,49 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import java.nio.ByteBuffer
+
+/**
+ * Destination for muxed samples, following the [MediaMuxer] call sequence: add every track, start,
+ * write samples, stop, release.
+ */
+interface SampleWriter {
+    /** Whether a track of [format] can be written; unsupported tracks are left out of a rewrap. */
+    fun canWrite(format: MediaFormat): Boolean
+
+    fun addTrack(format: MediaFormat): Int
+
+    fun setOrientationHint(degrees: Int)
+
+    fun start()
+
+    fun writeSampleData(trackIndex: Int, buffer: ByteBuffer, info: MediaCodec.BufferInfo)
+
+    fun stop()
+
+    fun release()
+}
+
+/** Regular MP4 file written by [MediaMuxer], with moov at the end. */
+class MediaMuxerWriter(outputPath: String) : SampleWriter {
+
+    private val muxer = MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+
+    override fun canWrite(format: MediaFormat): Boolean = true
+
+    override fun addTrack(format: MediaFormat): Int = muxer.addTrack(format)
+
+    override fun setOrientationHint(degrees: Int) = muxer.setOrientationHint(degrees)
+
+    override fun start() = muxer.start()
+
+    override fun writeSampleData(trackIndex: Int, buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        muxer.writeSampleData(trackIndex, buffer, info)
+    }
+
+    override fun stop() = muxer.stop()
+
+    override fun release() = muxer.release()
+}
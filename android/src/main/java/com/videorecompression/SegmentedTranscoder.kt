@@ -0,0 +1,239 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.CancellationSignal
+import android.os.OperationCanceledException
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Transcodes one video track as several GOP-aligned segments on parallel codec instances.
+ *
+ * The track is split at sync samples found by seeking the extractor near evenly spaced times, and
+ * every segment runs its own [VideoTranscoder] (decoder, GL context and encoder) on its own thread,
+ * spilling encoded samples to a file in [spillDir]. Segments keep the source timestamps, so once all
+ * of them finish they are replayed in order through the same callbacks as [VideoTranscoder.run] and
+ * form one continuous track. Until then [onProgress] receives the combined encoded duration of all
+ * segments, serialized across the segment threads.
+ *
+ * One track can only carry one set of codec-specific data. If the segment encoders disagree on
+ * SPS/PPS the spills are discarded and the track is transcoded sequentially instead.
+ */
+class SegmentedTranscoder(
+    private val inputPath: String,
+    private val trackIndex: Int,
+    private val inputFormat: MediaFormat,
+    private val config: VideoEncodeConfig,
+    private val bufferPool: BufferPool,
+    private val cancellation: CancellationSignal?,
+    private val spillDir: File,
+    private val segmentCount: Int,
+    private val onProgress: ((Long) -> Unit)? = null
+) {
+
+    companion object {
+        // Shorter segments spend more time starting codecs than they save
+        private const val MIN_SEGMENT_DURATION_US = 20_000_000L
+        private const val MAX_SEGMENTS = 4
+
+        /**
+         * Segments worth running for a track of [durationUs]: bounded by the decoder and encoder
+         * instances the device reports, half the CPU cores (each segment renders through GL on its
+         * own thread) and a minimum segment length.
+         */
+        fun segmentCountFor(inputMime: String, outputMime: String, durationUs: Long): Int {
+            val decoders = CodecCatalog.maxInstances(inputMime, encoder = false) ?: return 1
+            val encoders = CodecCatalog.maxInstances(outputMime, encoder = true) ?: return 1
+            val cores = maxOf(1, Runtime.getRuntime().availableProcessors() / 2)
+            val byDuration = (durationUs / MIN_SEGMENT_DURATION_US).toInt()
+            return minOf(decoders, encoders, cores, byDuration, MAX_SEGMENTS).coerceAtLeast(1)
+        }
+    }
+
+    private class Segment(val index: Int, val startUs: Long, val endUs: Long, val spill: File) {
+        val cancellation = CancellationSignal()
+        var outputFormat: MediaFormat? = null
+        var thread: Thread? = null
+        @Volatile var encodedUs = 0L
+    }
+
+    private val progressLock = Any()
+
+    /** Same contract as [VideoTranscoder.run]. */
+    fun run(onOutputFormat: (MediaFormat) -> Unit, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val boundaries = planBoundaries()
+        if (boundaries.size < 2) {
+            runSequential(onOutputFormat, onSample)
+            return
+        }
+        val segments = boundaries.mapIndexed { i, startUs ->
+            val endUs = if (i + 1 < boundaries.size) boundaries[i + 1] else Long.MAX_VALUE
+            Segment(i, startUs, endUs, File.createTempFile("segment-$i-", ".spill", spillDir))
+        }
+        Log.d("VideoRecompression", "Transcoding in ${segments.size} segments starting at ${boundaries.map { it / 1000 }} ms")
+
+        try {
+            transcodeSegments(segments)
+            val format = segments[0].outputFormat ?: throw IllegalStateException("Encoder produced no output")
+            if (segments.any { !sameCodecData(format, it.outputFormat) }) {
+                Log.w("VideoRecompression", "Segment encoders produced different codec data, transcoding sequentially")
+                runSequential(onOutputFormat, onSample)
+                return
+            }
+            onOutputFormat(format)
+            segments.forEach { replay(it.spill, onSample) }
+        } finally {
+            segments.forEach { it.spill.delete() }
+        }
+    }
+
+    /** Start times of the segments: the first sync sample and the sync samples preceding even splits. */
+    private fun planBoundaries(): List<Long> {
+        val extractor = openExtractor()
+        try {
+            val durationUs = if (inputFormat.containsKey(MediaFormat.KEY_DURATION)) inputFormat.getLong(MediaFormat.KEY_DURATION) else 0L
+            if (durationUs <= 0 || segmentCount < 2) return emptyList()
+            val first = extractor.sampleTime
+            val boundaries = sortedSetOf(first)
+            for (k in 1 until segmentCount) {
+                extractor.seekTo(durationUs * k / segmentCount, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                val syncTime = extractor.sampleTime
+                if (syncTime > first) boundaries.add(syncTime)
+            }
+            return boundaries.toList()
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun transcodeSegments(segments: List<Segment>) {
+        val failure = AtomicReference<Throwable?>()
+        // Each transcoder owns the listener of its own signal; the job signal fans out to them
+        cancellation?.setOnCancelListener { segments.forEach { it.cancellation.cancel() } }
+        try {
+            segments.forEach { segment ->
+                segment.thread = Thread({
+                    try {
+                        transcodeSegment(segment, segments)
+                    } catch (e: Throwable) {
+                        if (failure.compareAndSet(null, e)) segments.forEach { it.cancellation.cancel() }
+                    }
+                }, "VideoRecompression-segment-${segment.index}").apply { start() }
+            }
+            segments.forEach { it.thread?.join() }
+        } finally {
+            cancellation?.setOnCancelListener(null)
+        }
+
+        cancellation?.throwIfCanceled()
+        val error = failure.get() ?: return
+        if (error is OperationCanceledException) throw error
+        throw if (error is Exception) error else IllegalStateException("Segment transcoding failed", error)
+    }
+
+    private fun transcodeSegment(segment: Segment, segments: List<Segment>) {
+        val extractor = openExtractor()
+        try {
+            extractor.seekTo(segment.startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            DataOutputStream(BufferedOutputStream(FileOutputStream(segment.spill))).use { out ->
+                var scratch = ByteArray(0)
+                VideoTranscoder(extractor, inputFormat, config, bufferPool, segment.cancellation, endUs = segment.endUs).run(
+                    onOutputFormat = { segment.outputFormat = it },
+                    onSample = { buffer, info ->
+                        reportProgress(segments, segment, info.presentationTimeUs)
+                        if (scratch.size < info.size) scratch = ByteArray(info.size)
+                        val view = buffer.duplicate()
+                        view.limit(info.offset + info.size)
+                        view.position(info.offset)
+                        view.get(scratch, 0, info.size)
+                        out.writeLong(info.presentationTimeUs)
+                        out.writeInt(info.flags)
+                        out.writeInt(info.size)
+                        out.write(scratch, 0, info.size)
+                    }
+                )
+            }
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun reportProgress(segments: List<Segment>, segment: Segment, presentationTimeUs: Long) {
+        val onProgress = onProgress ?: return
+        segment.encodedUs = maxOf(segment.encodedUs, presentationTimeUs - segment.startUs)
+        synchronized(progressLock) {
+            onProgress(segments.sumOf { it.encodedUs })
+        }
+    }
+
+    private fun replay(spill: File, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val info = MediaCodec.BufferInfo()
+        var scratch = ByteArray(0)
+        var buffer = bufferPool.acquire(BufferPool.DEFAULT_BUFFER_SIZE)
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(spill))).use { input ->
+                while (true) {
+                    cancellation?.throwIfCanceled()
+                    val presentationTimeUs = try {
+                        input.readLong()
+                    } catch (e: EOFException) {
+                        break
+                    }
+                    val flags = input.readInt()
+                    val size = input.readInt()
+                    if (scratch.size < size) scratch = ByteArray(size)
+                    input.readFully(scratch, 0, size)
+                    if (buffer.capacity() < size) buffer = bufferPool.grow(buffer, size)
+                    buffer.clear()
+                    buffer.put(scratch, 0, size)
+                    buffer.flip()
+                    info.set(0, size, presentationTimeUs, flags)
+                    onSample(buffer, info)
+                }
+            }
+        } finally {
+            bufferPool.release(buffer)
+        }
+    }
+
+    private fun runSequential(onOutputFormat: (MediaFormat) -> Unit, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val extractor = openExtractor()
+        try {
+            VideoTranscoder(extractor, inputFormat, config, bufferPool, cancellation).run(onOutputFormat, onSample)
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun sameCodecData(a: MediaFormat, b: MediaFormat?): Boolean {
+        if (b == null) return false
+        return listOf("csd-0", "csd-1").all { key ->
+            val first = if (a.containsKey(key)) a.getByteBuffer(key)?.duplicate()?.apply { position(0) } else null
+            val second = if (b.containsKey(key)) b.getByteBuffer(key)?.duplicate()?.apply { position(0) } else null
+            first == second
+        }
+    }
+
+    private fun openExtractor(): MediaExtractor {
+        val extractor = MediaExtractor()
+        try {
+            extractor.setDataSource(inputPath)
+            extractor.selectTrack(trackIndex)
+        } catch (e: Exception) {
+            extractor.release()
+            throw e
+        }
+        return extractor
+    }
+}
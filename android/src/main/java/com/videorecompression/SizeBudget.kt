@@ -0,0 +1,145 @@
+package com.videorecompression
+
+import android.util.Log
+import com.facebook.react.bridge.ReadableMap
+import kotlin.math.abs
+
+/**
+ * Byte budget for a job with a `targetFileSize`.
+ *
+ * The container costs [overheadBytes]: a fixed part for the file and track headers plus an index
+ * entry per sample (stsz/stts/ctts/stco in `moov`, or the `trun` entries of fragmented output),
+ * which scales with the sample rate of the tracks and not with their bitrate. What is left after a
+ * small safety margin is the payload; audio keeps its bitrate and video gets the rest over
+ * [durationUs].
+ */
+class SizeBudget(
+    val targetBytes: Long,
+    val durationUs: Long,
+    val audioBitrate: Int,
+    val overheadBytes: Long
+) {
+
+    companion object {
+        private const val DEFAULT_AUDIO_BITRATE = 128000
+        private const val MIN_VIDEO_BITRATE = 100_000
+        private const val FIXED_OVERHEAD_BYTES = 16L * 1024
+        private const val INDEX_BYTES_PER_SAMPLE = 16
+        private const val DEFAULT_FRAME_RATE = 30.0
+        // AAC frames per second at 48 kHz
+        private const val AUDIO_SAMPLES_PER_SECOND = 47
+        // Encoders overshoot their target a little, most of all at the very end where it cannot be corrected
+        private const val SAFETY_MARGIN = 0.02
+
+        /** Audio bitrate an encoded audio track is given, shared with the transcoder. */
+        fun audioBitrateFor(settings: ReadableMap?): Int {
+            return if (settings?.hasKey("audioBitrate") == true) settings.getInt("audioBitrate") else DEFAULT_AUDIO_BITRATE
+        }
+
+        /**
+         * Budget for `targetFileSize` in [settings] over [durationUs] of output, or null when no
+         * target is set. Throws if the target cannot hold the audio plus a usable video stream.
+         */
+        fun from(settings: ReadableMap?, originalInfo: ReadableMap, trackActions: TrackActions, durationUs: Long): SizeBudget? {
+            if (settings?.hasKey("targetFileSize") != true) return null
+            val targetBytes = settings.getDouble("targetFileSize").toLong()
+            if (targetBytes <= 0) throw IllegalArgumentException("targetFileSize must be positive")
+            if (durationUs <= 0) throw IllegalArgumentException("targetFileSize needs an input with a known duration")
+
+            val audioBitrate = when (trackActions.audio) {
+                "encode" -> audioBitrateFor(settings)
+                "copy" -> originalInfo.getInt("audioBitrate")
+                else -> 0
+            }
+            val budget = SizeBudget(targetBytes, durationUs, audioBitrate, overheadBytes(originalInfo, trackActions, durationUs))
+            if (trackActions.video != "none" && budget.videoBitrate < MIN_VIDEO_BITRATE) {
+                throw IllegalArgumentException(
+                    "targetFileSize of $targetBytes bytes leaves ${maxOf(0, budget.videoBitrate)} bps for " +
+                        "${durationUs / 1_000_000.0} s of video; at least $MIN_VIDEO_BITRATE bps is needed"
+                )
+            }
+            Log.d("VideoRecompression", "Size budget: $targetBytes bytes, video ${budget.videoBitrate} bps, audio $audioBitrate bps, overhead ${budget.overheadBytes} bytes")
+            return budget
+        }
+
+        /** Estimated container bytes around the sample payloads of [durationUs] of output. */
+        fun overheadBytes(originalInfo: ReadableMap, trackActions: TrackActions, durationUs: Long): Long {
+            val frameRate = originalInfo.getDouble("frameRate").takeIf { it > 0 } ?: DEFAULT_FRAME_RATE
+            val samplesPerSecond = (if (trackActions.video != "none") frameRate else 0.0) +
+                (if (trackActions.audio != "none") AUDIO_SAMPLES_PER_SECOND else 0)
+            return FIXED_OVERHEAD_BYTES + (samplesPerSecond * INDEX_BYTES_PER_SAMPLE * durationUs / 1_000_000).toLong()
+        }
+    }
+
+    /** Bytes the track payloads may use. */
+    val payloadBytes: Long = (targetBytes * (1 - SAFETY_MARGIN)).toLong() - overheadBytes
+
+    /** Video bitrate that fills the payload next to the audio. */
+    val videoBitrate: Int = (payloadBytes * 8 * 1_000_000 / durationUs - audioBitrate)
+        .coerceIn(0L, Int.MAX_VALUE.toLong()).toInt()
+
+    /** Bitrate to encode at: the budget, but never more than a known [sourceBitrate]. */
+    fun encodeBitrate(sourceBitrate: Int): Int = if (sourceBitrate > 0) minOf(videoBitrate, sourceBitrate) else videoBitrate
+
+    /** Expected output size with video at [videoBitrate]. */
+    fun predictedBytes(videoBitrate: Int): Long {
+        return overheadBytes + (videoBitrate.toLong() + audioBitrate) * durationUs / 8_000_000
+    }
+
+    fun controller(initialBitrate: Int, maxBitrate: Int): BitrateController {
+        return BitrateController(payloadBytes, durationUs, audioBitrate, initialBitrate, MIN_VIDEO_BITRATE / 4, maxOf(maxBitrate, initialBitrate))
+    }
+}
+
+/**
+ * Steers the video encoder towards a payload budget in a single pass.
+ *
+ * Every [CHECK_INTERVAL_US] of output the bytes written so far (all tracks) are compared with the
+ * budget, and the video bitrate becomes whatever spends the remaining bytes evenly over the
+ * remaining time. Because the correction is always derived from the cumulative total, an encoder
+ * that overshoots or undershoots its nominal rate is pulled back rather than drifting. Each step is
+ * limited to a factor of [MAX_STEP], which keeps the encoder's own rate control stable.
+ */
+class BitrateController(
+    private val payloadBytes: Long,
+    private val durationUs: Long,
+    private val audioBitrate: Int,
+    initialBitrate: Int,
+    private val minBitrate: Int,
+    private val maxBitrate: Int
+) {
+
+    companion object {
+        // One default GOP, so a keyframe's bytes are not mistaken for a trend
+        private const val CHECK_INTERVAL_US = 2_000_000L
+        private const val MIN_REMAINING_US = 1_000_000L
+        private const val MAX_STEP = 1.5
+        private const val MIN_CHANGE = 0.05
+    }
+
+    var bitrate: Int = initialBitrate
+        private set
+
+    private var nextCheckUs = CHECK_INTERVAL_US
+
+    /**
+     * Called after each video sample with its output time and the bytes written so far. Returns the
+     * new bitrate when the encoder should change it, otherwise null.
+     */
+    fun update(elapsedUs: Long, bytesWritten: Long): Int? {
+        if (elapsedUs < nextCheckUs) return null
+        nextCheckUs = elapsedUs + CHECK_INTERVAL_US
+
+        val remainingUs = maxOf(durationUs - elapsedUs, MIN_REMAINING_US)
+        val remainingBytes = payloadBytes - bytesWritten
+        val wanted = remainingBytes * 8 * 1_000_000 / remainingUs - audioBitrate
+        val next = wanted
+            .coerceIn((bitrate / MAX_STEP).toLong(), (bitrate * MAX_STEP).toLong())
+            .coerceIn(minBitrate.toLong(), maxBitrate.toLong())
+            .toInt()
+        if (abs(next - bitrate) < bitrate * MIN_CHANGE) return null
+        Log.d("VideoRecompression", "Bitrate $bitrate -> $next bps at ${elapsedUs / 1000} ms, $bytesWritten of $payloadBytes bytes written")
+        bitrate = next
+        return next
+    }
+}
@@ -0,0 +1,190 @@
+package com.videorecompression
+
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.Build
+import android.os.CancellationSignal
+import com.facebook.react.bridge.ReadableMap
+import java.nio.ByteBuffer
+
+/** Part of the input to keep, from the `startTime`/`endTime` settings in seconds. */
+data class TrimRange(val startUs: Long, val endUs: Long) {
+
+    companion object {
+        /** Returns null when the settings keep the whole input; [endUs] is open-ended when the range runs to the end. */
+        fun from(settings: ReadableMap?, durationUs: Long): TrimRange? {
+            val startUs = if (settings?.hasKey("startTime") == true) {
+                (settings.getDouble("startTime") * 1_000_000).toLong().coerceAtLeast(0L)
+            } else {
+                0L
+            }
+            val requestedEndUs = if (settings?.hasKey("endTime") == true) {
+                (settings.getDouble("endTime") * 1_000_000).toLong()
+            } else {
+                Long.MAX_VALUE
+            }
+            val endUs = if (durationUs > 0 && requestedEndUs >= durationUs) Long.MAX_VALUE else requestedEndUs
+
+            if (startUs == 0L && endUs == Long.MAX_VALUE) return null
+            if (endUs <= startUs) {
+                throw IllegalArgumentException("endTime must be after startTime")
+            }
+            if (durationUs in 1..startUs) {
+                throw IllegalArgumentException("startTime is beyond the end of the video")
+            }
+            return TrimRange(startUs, endUs)
+        }
+    }
+
+    /** Length of the kept range for a source of [durationUs]. */
+    fun lengthUs(durationUs: Long): Long = minOf(endUs, durationUs) - startUs
+}
+
+/**
+ * Cuts a stream-copied video track to a [TrimRange] with frame accuracy.
+ *
+ * Complete GOPs inside the range are copied untouched; only the partial GOPs at the edges are
+ * decoded and re-encoded, at the source codec, size and bitrate. Reading starts at the sync sample
+ * before the range, so trimming a few seconds out of a long file reads a few seconds of it.
+ *
+ * The track header keeps the source codec-specific data. Re-encoded edges carry the encoder's
+ * SPS/PPS in band ahead of their first keyframe, and the source parameter sets are repeated in band
+ * on the first copied keyframe after a re-encoded head, so decoders switch at each keyframe.
+ * Samples keep their source timestamps; the caller shifts them.
+ */
+class SmartCut(
+    private val inputPath: String,
+    private val trackIndex: Int,
+    private val inputFormat: MediaFormat,
+    private val range: TrimRange,
+    private val sourceBitrate: Int,
+    private val sourceFrameRate: Double,
+    private val bufferPool: BufferPool,
+    private val cancellation: CancellationSignal?
+) {
+
+    companion object {
+        private const val DEFAULT_BITRATE = 4_000_000
+        private const val DEFAULT_FRAME_RATE = 30
+    }
+
+    /** Delivers the samples of the cut track in decode order, from a single thread. */
+    fun run(onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val extractor = MediaExtractor()
+        try {
+            extractor.setDataSource(inputPath)
+            extractor.selectTrack(trackIndex)
+
+            // First keyframe inside the range, and the keyframe the tail GOP starts at
+            extractor.seekTo(range.startUs, MediaExtractor.SEEK_TO_NEXT_SYNC)
+            val copyStartUs = extractor.sampleTime.takeIf { it >= 0 } ?: Long.MAX_VALUE
+            val copyEndUs = if (range.endUs == Long.MAX_VALUE) {
+                Long.MAX_VALUE
+            } else {
+                extractor.seekTo(range.endUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                extractor.sampleTime.takeIf { it >= 0 } ?: Long.MAX_VALUE
+            }
+
+            if (copyStartUs >= copyEndUs || copyStartUs >= range.endUs) {
+                // The range lies within one GOP
+                encode(extractor, range.startUs, range.endUs, onSample)
+                return
+            }
+            val headEncoded = range.startUs < copyStartUs
+            if (headEncoded) encode(extractor, range.startUs, copyStartUs, onSample)
+            copy(extractor, copyStartUs, copyEndUs, repeatParameterSets = headEncoded, onSample = onSample)
+            if (copyEndUs < range.endUs) encode(extractor, copyEndUs, range.endUs, onSample)
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun copy(
+        extractor: MediaExtractor, startUs: Long, endUs: Long, repeatParameterSets: Boolean,
+        onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit
+    ) {
+        extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+        val info = MediaCodec.BufferInfo()
+        var buffer = bufferPool.acquire(BufferPool.capacityFor(inputFormat))
+        var first = repeatParameterSets
+        try {
+            while (true) {
+                cancellation?.throwIfCanceled()
+                val time = extractor.sampleTime
+                val sync = extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+                if (time < 0 || (sync && time >= endUs)) break
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && extractor.sampleSize > buffer.capacity()) {
+                    buffer = bufferPool.grow(buffer, extractor.sampleSize.toInt())
+                }
+                val size = extractor.readSampleData(buffer, 0)
+                if (size < 0) break
+                info.set(0, size, time, extractor.sampleFlags)
+                if (first) {
+                    writeWithParameterSets(inputFormat, buffer, info, onSample)
+                    first = false
+                } else {
+                    onSample(buffer, info)
+                }
+                extractor.advance()
+            }
+        } finally {
+            bufferPool.release(buffer)
+        }
+    }
+
+    /** Re-encodes the frames in [startUs, endUs), decoding from the keyframe before [startUs]. */
+    private fun encode(
+        extractor: MediaExtractor, startUs: Long, endUs: Long,
+        onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit
+    ) {
+        extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+        val config = VideoEncodeConfig(
+            mime = inputFormat.getString(MediaFormat.KEY_MIME)!!,
+            width = inputFormat.getInteger(MediaFormat.KEY_WIDTH),
+            height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT),
+            bitrate = if (sourceBitrate > 0) sourceBitrate else DEFAULT_BITRATE,
+            frameRate = if (sourceFrameRate > 0) Math.round(sourceFrameRate).toInt() else DEFAULT_FRAME_RATE,
+            rotation = 0
+        )
+        var encodedFormat: MediaFormat? = null
+        var first = true
+        VideoTranscoder(extractor, inputFormat, config, bufferPool, cancellation, startUs, endUs).run(
+            onOutputFormat = { encodedFormat = it },
+            onSample = { buffer, info ->
+                if (first) {
+                    writeWithParameterSets(encodedFormat!!, buffer, info, onSample)
+                    first = false
+                } else {
+                    onSample(buffer, info)
+                }
+            }
+        )
+    }
+
+    /** Writes a keyframe preceded by the Annex-B parameter sets (csd-0, csd-1) of [format]. */
+    private fun writeWithParameterSets(
+        format: MediaFormat, buffer: ByteBuffer, info: MediaCodec.BufferInfo,
+        onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit
+    ) {
+        val parameterSets = listOf("csd-0", "csd-1").mapNotNull { key ->
+            if (format.containsKey(key)) format.getByteBuffer(key)?.duplicate()?.apply { position(0) } else null
+        }
+        val combined = bufferPool.acquire(parameterSets.sumOf { it.remaining() } + info.size)
+        try {
+            parameterSets.forEach { combined.put(it) }
+            val sample = buffer.duplicate()
+            sample.limit(info.offset + info.size)
+            sample.position(info.offset)
+            combined.put(sample)
+            combined.flip()
+            val combinedInfo = MediaCodec.BufferInfo().apply {
+                set(0, combined.limit(), info.presentationTimeUs, info.flags)
+            }
+            onSample(combined, combinedInfo)
+        } finally {
+            bufferPool.release(combined)
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.videorecompression
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMetadataRetriever
+import android.os.Build
+import android.os.CancellationSignal
+import android.util.Log
+import com.facebook.react.bridge.ReadableMap
+import java.io.File
+import java.io.FileOutputStream
+import java.security.MessageDigest
+
+/** What extractThumbnails was asked for; times in microseconds. */
+class ThumbnailRequest(
+    val timestampsUs: List<Long>?,
+    val count: Int,
+    val maxSize: Int,
+    val format: String,
+    val quality: Int
+) {
+    companion object {
+        private const val DEFAULT_COUNT = 1
+        private const val DEFAULT_MAX_SIZE = 320
+        private const val DEFAULT_QUALITY = 80
+        private const val MAX_COUNT = 100
+
+        fun from(options: ReadableMap?): ThumbnailRequest {
+            val timestamps = if (options?.hasKey("timestamps") == true) {
+                options.getArray("timestamps")?.let { array ->
+                    (0 until array.size()).map { (array.getDouble(it) * 1_000_000).toLong().coerceAtLeast(0L) }
+                }
+            } else {
+                null
+            }
+            val count = if (options?.hasKey("count") == true) options.getInt("count") else DEFAULT_COUNT
+            if (timestamps == null && count !in 1..MAX_COUNT) {
+                throw IllegalArgumentException("count must be between 1 and $MAX_COUNT")
+            }
+            return ThumbnailRequest(
+                timestamps,
+                count,
+                if (options?.hasKey("maxSize") == true) options.getInt("maxSize").coerceAtLeast(16) else DEFAULT_MAX_SIZE,
+                if (options?.hasKey("format") == true && options.getString("format") == "webp") "webp" else "jpeg",
+                if (options?.hasKey("quality") == true) options.getInt("quality").coerceIn(0, 100) else DEFAULT_QUALITY
+            )
+        }
+    }
+}
+
+/** One extracted frame: the requested time, the sync sample actually shown, and the image file. */
+class Thumbnail(val requestedUs: Long, val timeUs: Long, val path: String, val width: Int, val height: Int, val cached: Boolean)
+
+/**
+ * Extracts thumbnails from sync samples only.
+ *
+ * Every requested time is first mapped to its closest sync sample with a MediaExtractor seek, which
+ * only consults the sample index. Times that land on the same sync sample share one image. Only
+ * those frames are decoded, scaled down by the decoder where the platform allows it (API 27+),
+ * and compressed to JPEG or WebP. Images are kept in [dir] under a key of the file fingerprint,
+ * sync time and output options, and evicted least recently used beyond [maxBytes]. Images returned
+ * by [extract] are pinned against eviction until the caller hands them to [release].
+ */
+class ThumbnailExtractor(private val dir: File, private val maxBytes: Long = DEFAULT_MAX_BYTES) {
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 64L * 1024 * 1024
+    }
+
+    private val lock = Any()
+    // Image file name -> calls that returned it and have not released it yet
+    private val pinned = HashMap<String, Int>()
+
+    fun extract(
+        path: String, fingerprint: String, durationUs: Long, request: ThumbnailRequest,
+        cancellation: CancellationSignal? = null
+    ): List<Thumbnail> {
+        val requested = request.timestampsUs ?: (0 until request.count).map { i ->
+            // Centre of each of count equal slices, which skips the often black first frame
+            durationUs * (2 * i + 1) / (2 * request.count)
+        }
+        val syncTimes = syncSampleTimes(path, requested)
+        val retriever = lazy { MediaMetadataRetriever().apply { setDataSource(path) } }
+        val images = HashMap<Long, Thumbnail>()
+        try {
+            return requested.mapIndexed { i, requestedUs ->
+                cancellation?.throwIfCanceled()
+                val syncUs = syncTimes[i]
+                val image = images.getOrPut(syncUs) { image(retriever, fingerprint, syncUs, request) }
+                Thumbnail(requestedUs, syncUs, image.path, image.width, image.height, image.cached)
+            }
+        } catch (e: Exception) {
+            release(images.values.toList())
+            throw e
+        } finally {
+            if (retriever.isInitialized()) retriever.value.release()
+        }
+    }
+
+    /** Unpins the images of one [extract] call, so eviction may remove them again. */
+    fun release(thumbnails: List<Thumbnail>) {
+        synchronized(lock) {
+            thumbnails.map { File(it.path).name }.distinct().forEach { name ->
+                val count = pinned[name] ?: return@forEach
+                if (count > 1) pinned[name] = count - 1 else pinned.remove(name)
+            }
+        }
+    }
+
+    /** Closest sync sample for each time, from the sample index alone. */
+    private fun syncSampleTimes(path: String, timesUs: List<Long>): List<Long> {
+        val extractor = MediaExtractor()
+        try {
+            extractor.setDataSource(path)
+            val track = (0 until extractor.trackCount).firstOrNull { i ->
+                extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME)?.startsWith("video/") == true
+            } ?: throw IllegalStateException("No video track found in $path")
+            extractor.selectTrack(track)
+            return timesUs.map { timeUs ->
+                extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC)
+                extractor.sampleTime.takeIf { it >= 0 } ?: timeUs
+            }
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun image(
+        retriever: Lazy<MediaMetadataRetriever>, fingerprint: String, syncUs: Long, request: ThumbnailRequest
+    ): Thumbnail {
+        val extension = if (request.format == "webp") "webp" else "jpg"
+        val file = File(dir, "${keyFor(fingerprint, syncUs, request)}.$extension")
+        synchronized(lock) {
+            if (file.exists()) {
+                file.setLastModified(System.currentTimeMillis())
+                val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+                BitmapFactory.decodeFile(file.path, bounds)
+                if (bounds.outWidth > 0) {
+                    pin(file.name)
+                    return Thumbnail(syncUs, syncUs, file.path, bounds.outWidth, bounds.outHeight, true)
+                }
+            }
+        }
+
+        val bitmap = decodeFrame(retriever.value, syncUs, request.maxSize)
+            ?: throw IllegalStateException("Could not decode the frame at ${syncUs / 1000} ms")
+        try {
+            dir.mkdirs()
+            val temp = File(dir, "${file.name}.tmp")
+            FileOutputStream(temp).use { out ->
+                if (!bitmap.compress(compressFormat(request.format), request.quality, out)) {
+                    throw IllegalStateException("Could not encode thumbnail")
+                }
+            }
+            synchronized(lock) {
+                if (!temp.renameTo(file)) {
+                    temp.delete()
+                    throw IllegalStateException("Cannot store thumbnail ${file.name}")
+                }
+                pin(file.name)
+                evict()
+            }
+            return Thumbnail(syncUs, syncUs, file.path, bitmap.width, bitmap.height, false)
+        } finally {
+            bitmap.recycle()
+        }
+    }
+
+    private fun decodeFrame(retriever: MediaMetadataRetriever, timeUs: Long, maxSize: Int): Bitmap? {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            // The decoder output is scaled before it is copied into a bitmap
+            return retriever.getScaledFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, maxSize, maxSize)
+        }
+        val frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC) ?: return null
+        val scale = maxSize.toDouble() / maxOf(frame.width, frame.height)
+        if (scale >= 1.0) return frame
+        val scaled = Bitmap.createScaledBitmap(
+            frame, maxOf(1, (frame.width * scale).toInt()), maxOf(1, (frame.height * scale).toInt()), true
+        )
+        if (scaled !== frame) frame.recycle()
+        return scaled
+    }
+
+    @Suppress("DEPRECATION")
+    private fun compressFormat(format: String): Bitmap.CompressFormat = when {
+        format != "webp" -> Bitmap.CompressFormat.JPEG
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.R -> Bitmap.CompressFormat.WEBP_LOSSY
+        else -> Bitmap.CompressFormat.WEBP
+    }
+
+    private fun keyFor(fingerprint: String, syncUs: Long, request: ThumbnailRequest): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("$fingerprint\n$syncUs\n${request.maxSize}\n${request.format}\n${request.quality}".toByteArray(Charsets.UTF_8))
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    private fun pin(name: String) {
+        pinned[name] = (pinned[name] ?: 0) + 1
+    }
+
+    private fun evict() {
+        val entries = dir.listFiles { file -> !file.name.endsWith(".tmp") }?.sortedBy { it.lastModified() } ?: return
+        var total = entries.sumOf { it.length() }
+        for (entry in entries) {
+            if (total <= maxBytes) break
+            // Another call is about to hand this image to JS
+            if (entry.name in pinned) continue
+            total -= entry.length()
+            entry.delete()
+            Log.d("VideoRecompression", "Evicted thumbnail ${entry.name}")
+        }
+    }
+}
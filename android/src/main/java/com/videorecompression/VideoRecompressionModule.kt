@@ -3,34 +3,165 @@ package com.videorecompression
 import com.facebook.react.bridge.*
 import com.facebook.react.modules.core.DeviceEventManagerModule
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import android.media.MediaMetadataRetriever
 import android.media.MediaFormat
-import android.media.MediaMuxer
 import android.media.MediaExtractor
 import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaCodecList
 import android.net.Uri
+import android.os.CancellationSignal
 import android.util.Log
 import java.io.File
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 
 data class TrackInfo(
     val videoCodec: String,
     val audioCodec: String,
     val videoBitrate: Int,
-    val audioBitrate: Int
+    val audioBitrate: Int,
+    val frameRate: Double
 )
 
+/** A queued or running job; the signal stops the blocking copy and codec loops. */
+private class RunningJob(val cancellation: CancellationSignal) {
+    @Volatile var job: Job? = null
+
+    fun cancel() {
+        cancellation.cancel()
+        job?.cancel()
+    }
+}
+
+/** Problem with the input file itself, reported without the generic failure prefix. */
+private class InputException(message: String) : Exception(message)
+
+/** Settings the pipeline cannot honour; rejected with `INVALID_SETTINGS` before anything is written. */
+private class SettingsException(message: String) : Exception(message)
+
+/** Result of the probe stage for one input. */
+private class ProbedInput(val mp4Info: Mp4Info?, val originalInfo: WritableMap)
+
+/** What runJob does with an input, decided before any output is written, and its predicted cost. */
+private class JobPlan(
+    val action: String,
+    val trackActions: TrackActions,
+    val trim: TrimRange?,
+    val outputDurationUs: Long,
+    val fragmentedOutput: Boolean,
+    val sizeBudget: SizeBudget?,
+    val work: CostModel.Work,
+    // Bitrate × duration size of an encoded output without a size target, which calibrates the model
+    val plannedEncodedSize: Long?,
+    val predictedSize: Long
+)
+
+private class BatchItem(
+    val index: Int,
+    val jobId: String,
+    val inputPath: String,
+    val outputPath: String,
+    val settings: ReadableMap,
+    val priority: JobPriority,
+    val running: RunningJob
+)
+
+/** Probe stage output for a batch item: the analysis, or the error that stopped it. */
+private class ProbeOutcome(val item: BatchItem, val input: ProbedInput?, val error: Exception?)
+
+/** Per-track processing decision: "copy", "encode" or "none" when the input has no such track. */
+data class TrackActions(
+    val video: String,
+    val audio: String
+) {
+    val copyOnly: Boolean get() = video != "encode" && audio != "encode"
+}
+
+fun videoCodecFromMime(mime: String): String = when {
+    mime.contains("avc") || mime.contains("h264") -> "h264"
+    mime.contains("hevc") || mime.contains("h265") -> "hevc"
+    mime.contains("vp8") -> "vp8"
+    mime.contains("vp9") -> "vp9"
+    mime.contains("av01") -> "av1"
+    else -> "unknown"
+}
+
+fun audioCodecFromMime(mime: String): String = when {
+    mime.contains("mp4a") || mime.contains("aac") -> "aac"
+    mime.contains("mp3") -> "mp3"
+    mime.contains("opus") -> "opus"
+    mime.contains("vorbis") -> "vorbis"
+    mime.contains("flac") -> "flac"
+    else -> "unknown"
+}
+
 class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactContextBaseJavaModule(reactContext) {
 
+    companion object {
+        private const val MIN_INTERLEAVE_STEP_US = 100_000L
+        private const val BATCH_PROBE_LOOKAHEAD = 2
+        private const val BATCH_ITEM_EVENT = "VideoRecompressionBatchItem"
+        private const val FRAGMENT_EVENT = "VideoRecompressionFragment"
+        private const val MIN_FRAGMENT_DURATION_US = 500_000L
+        // Runs of a durable job, the first included, before a restart gives up on it
+        private const val MAX_JOB_ATTEMPTS = 3
+    }
+
     private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private val scheduler by lazy { JobScheduler.create() }
+    // Room for every encoded sample a running transcode may have copied out ahead of its muxer
+    private val bufferPool by lazy {
+        BufferPool(maxPooledBuffers = VideoTranscoder.ENCODED_QUEUE_CAPACITY * scheduler.limit(JobKind.TRANSCODE))
+    }
+    private val runningJobs = ConcurrentHashMap<String, RunningJob>()
+    private val resultCache by lazy { ResultCache(File(reactApplicationContext.cacheDir, "results")) }
+    // Cache key -> completion of the job computing it, so identical jobs wait instead of recomputing
+    private val inFlight = ConcurrentHashMap<String, CompletableDeferred<Unit>>()
+    // Jobs that have started writing their output file, so a failure may delete what they wrote
+    private val createdOutputs = ConcurrentHashMap.newKeySet<String>()
+    private val thumbnails by lazy { ThumbnailExtractor(File(reactApplicationContext.cacheDir, "thumbnails")) }
+    private val costModel by lazy { CostModel(File(reactApplicationContext.filesDir, "video-recompression-cost-model.json")) }
+    private val jobQueue by lazy { JobQueue(File(reactApplicationContext.filesDir, "video-recompression-jobs.log")) }
+    // Set while the React instance is torn down; the jobs it cancels stay queued
+    @Volatile private var shuttingDown = false
 
     override fun getName(): String {
         return "VideoRecompression"
     }
 
+    override fun initialize() {
+        super.initialize()
+        // Jobs that were queued or running when the previous instance went away
+        scope.launch {
+            try {
+                jobQueue.pending().forEach { queued ->
+                    if (queued.attempts >= MAX_JOB_ATTEMPTS) {
+                        // Most likely the job itself took the process down each time
+                        Log.w("VideoRecompression", "Giving up on queued job ${queued.jobId} after ${queued.attempts} attempts")
+                        jobQueue.fail(queued.jobId, "PROCESS_ERROR", "Job did not finish after ${queued.attempts} attempts")
+                        return@forEach
+                    }
+                    val running = RunningJob(CancellationSignal())
+                    if (runningJobs.putIfAbsent(queued.jobId, running) == null) {
+                        Log.d("VideoRecompression", "Restarting queued job ${queued.jobId}")
+                        // Counted before the run, so a crash during it still counts
+                        jobQueue.attempt(queued.jobId)
+                        launchJob(
+                            queued.jobId, queued.inputPath, queued.outputPath, BridgeJson.fromJson(queued.settings),
+                            running, durable = true, submit = false, promise = null
+                        )
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e("VideoRecompression", "Could not restart queued jobs", e)
+            }
+        }
+    }
+
     @ReactMethod
     fun init(promise: Promise) {
         try {
@@ -59,7 +190,9 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
     fun analyzeVideo(filePath: String, promise: Promise) {
         scope.launch {
             try {
-                val videoInfo = getVideoInfo(filePath)
+                val videoInfo = scheduler.run(JobKind.PROBE, JobPriority.NORMAL) {
+                    getVideoInfo(filePath).apply { putString("fingerprint", Fingerprint.sparse(File(filePath))) }
+                }
                 promise.resolve(videoInfo)
             } catch (e: Exception) {
                 promise.reject("ANALYZE_ERROR", "Failed to analyze video: ${e.message}", e)
@@ -67,6 +200,90 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
         }
     }
 
+    /**
+     * Predicts a processVideo job without running it: the action it would take, the output size and
+     * the processing time from the device's cost model. Time spent waiting for a free slot is not
+     * included.
+     */
+    @ReactMethod
+    fun estimateProcessing(filePath: String, settings: ReadableMap?, promise: Promise) {
+        scope.launch {
+            try {
+                val probed = probeInput(filePath, priorityOf(settings))
+                val plan = planJob(filePath, settings, probed.originalInfo)
+                val estimate = costModel.estimate(plan.work)
+                promise.resolve(WritableNativeMap().apply {
+                    putString("action", plan.action)
+                    putMap("trackActions", WritableNativeMap().apply {
+                        putString("video", plan.trackActions.video)
+                        putString("audio", plan.trackActions.audio)
+                    })
+                    putDouble("predictedSize", plan.predictedSize.toDouble())
+                    putDouble("predictedTime", estimate.timeMs.toDouble())
+                    putInt("calibrationSamples", estimate.samples)
+                    putMap("originalInfo", probed.originalInfo)
+                })
+            } catch (e: SettingsException) {
+                promise.reject("INVALID_SETTINGS", e.message, e)
+            } catch (e: Exception) {
+                promise.reject("ESTIMATE_ERROR", "Failed to estimate processing: ${e.message}", e)
+            }
+        }
+    }
+
+    /**
+     * Extracts `count` evenly spaced thumbnails, or one per entry of `timestamps` (seconds), from the
+     * closest sync samples. Resolves with `{ requestedTime, time, path, width, height, cached }` per
+     * requested time, in order. Registered under `jobId` like processVideo, so cancelJob stops it.
+     */
+    @ReactMethod
+    fun extractThumbnails(filePath: String, options: ReadableMap?, promise: Promise) {
+        val jobId = (if (options?.hasKey("jobId") == true) options.getString("jobId") else null)
+            ?.takeIf { it.isNotEmpty() } ?: UUID.randomUUID().toString()
+        val running = RunningJob(CancellationSignal())
+        if (runningJobs.putIfAbsent(jobId, running) != null) {
+            promise.reject("THUMBNAIL_ERROR", "A job with id $jobId is already running")
+            return
+        }
+        val job = scope.launch(start = CoroutineStart.LAZY) {
+            try {
+                val request = ThumbnailRequest.from(options)
+                val images = scheduler.run(JobKind.PROBE, JobPriority.NORMAL) {
+                    // The same header probe analyzeVideo uses gives the duration
+                    val info = getVideoInfo(filePath)
+                    val durationUs = (info.getDouble("duration") * 1_000_000).toLong()
+                    thumbnails.extract(filePath, Fingerprint.sparse(File(filePath)), durationUs, request, running.cancellation)
+                }
+                // Pinned until the paths have crossed the bridge
+                try {
+                    promise.resolve(WritableNativeArray().apply {
+                        images.forEach { image ->
+                            pushMap(WritableNativeMap().apply {
+                                putDouble("requestedTime", image.requestedUs / 1_000_000.0)
+                                putDouble("time", image.timeUs / 1_000_000.0)
+                                putString("path", image.path)
+                                putInt("width", image.width)
+                                putInt("height", image.height)
+                                putBoolean("cached", image.cached)
+                            })
+                        }
+                    })
+                } finally {
+                    thumbnails.release(images)
+                }
+            } catch (e: Exception) {
+                if (running.cancellation.isCanceled) {
+                    promise.reject("CANCELLED", "Job $jobId was cancelled", e)
+                } else {
+                    promise.reject("THUMBNAIL_ERROR", "Failed to extract thumbnails: ${e.message}", e)
+                }
+            }
+        }
+        running.job = job
+        job.invokeOnCompletion { runningJobs.remove(jobId) }
+        job.start()
+    }
+
     @ReactMethod
     fun processVideo(
         inputPath: String,
@@ -74,121 +291,812 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
         settings: ReadableMap?,
         promise: Promise
     ) {
-        scope.launch {
+        val jobId = (if (settings?.hasKey("jobId") == true) settings.getString("jobId") else null)
+            ?.takeIf { it.isNotEmpty() } ?: UUID.randomUUID().toString()
+        val running = RunningJob(CancellationSignal())
+        if (runningJobs.putIfAbsent(jobId, running) != null) {
+            promise.reject("PROCESS_ERROR", "A job with id $jobId is already running")
+            return
+        }
+        val durable = settings?.hasKey("durable") == true && settings.getBoolean("durable")
+        launchJob(jobId, inputPath, outputPath, settings, running, durable, submit = durable, promise = promise)
+    }
+
+    /**
+     * Runs a registered job. A [durable] job is recorded in the job queue first when [submit] is
+     * set, and its outcome afterwards unless the job was stopped by teardown, in which case it
+     * stays queued and keeps its partial output for the next start.
+     */
+    private fun launchJob(
+        jobId: String, inputPath: String, outputPath: String, settings: ReadableMap?,
+        running: RunningJob, durable: Boolean, submit: Boolean, promise: Promise?
+    ) {
+        val job = scope.launch(start = CoroutineStart.LAZY) {
+            if (submit) {
+                // Synced to disk here on the job dispatcher rather than on the bridge thread
+                try {
+                    jobQueue.submit(jobId, inputPath, outputPath, settings)
+                } catch (e: Exception) {
+                    Log.w("VideoRecompression", "Could not queue job $jobId durably: ${e.message}")
+                }
+            }
             try {
-                // Input validation
-                val inputFile = File(inputPath)
-                if (!inputFile.exists()) {
-                    promise.reject("PROCESS_ERROR", "Input file does not exist: $inputPath")
+                val startTime = System.currentTimeMillis()
+                val priority = priorityOf(settings)
+                val probed = probeInput(inputPath, priority)
+                val result = runCachedJob(inputPath, outputPath, settings, jobId, running.cancellation, probed, priority, startTime)
+                // Recorded before the bridge consumes the map
+                if (durable) jobQueue.complete(jobId, result)
+                promise?.resolve(result)
+            } catch (e: Exception) {
+                if (durable && shuttingDown) {
+                    Log.d("VideoRecompression", "Job $jobId interrupted by teardown, left queued")
+                    promise?.reject("CANCELLED", "Job $jobId was interrupted", e)
                     return@launch
                 }
-                
-                if (!inputFile.canRead()) {
-                    promise.reject("PROCESS_ERROR", "Cannot read input file: $inputPath")
-                    return@launch
+                val (code, message) = jobFailure(jobId, inputPath, outputPath, running.cancellation, e)
+                if (durable) jobQueue.fail(jobId, code, message)
+                promise?.reject(code, message, e)
+            }
+        }
+        running.job = job
+        job.invokeOnCompletion {
+            runningJobs.remove(jobId)
+            createdOutputs.remove(jobId)
+        }
+        job.start()
+    }
+
+    /**
+     * Processes several files as one pipelined batch.
+     *
+     * A probe stage runs up to [BATCH_PROBE_LOOKAHEAD] files ahead of the processing stage, so the
+     * next inputs are analysed while earlier ones are muxing or encoding. Each processed item is sent
+     * as a batch item event as soon as it finishes; the promise resolves with all items in input
+     * order. Every item is a regular job that cancelJob can stop on its own; cancelling the batch id
+     * stops all of them.
+     */
+    @ReactMethod
+    fun processVideos(jobs: ReadableArray, settings: ReadableMap?, promise: Promise) {
+        val batchId = (if (settings?.hasKey("batchId") == true) settings.getString("batchId") else null)
+            ?.takeIf { it.isNotEmpty() } ?: UUID.randomUUID().toString()
+        val items = try {
+            (0 until jobs.size()).map { index -> batchItem(batchId, index, jobs.getMap(index), settings) }
+        } catch (e: Exception) {
+            promise.reject("PROCESS_ERROR", "Invalid batch: ${e.message}", e)
+            return
+        }
+        
+        val ids = items.map { it.jobId } + batchId
+        if (ids.toSet().size != ids.size || ids.any { runningJobs.containsKey(it) }) {
+            promise.reject("PROCESS_ERROR", "Batch $batchId repeats a job id or reuses one that is running")
+            return
+        }
+        val batch = RunningJob(CancellationSignal())
+        items.forEach { runningJobs[it.jobId] = it.running }
+        runningJobs[batchId] = batch
+        batch.cancellation.setOnCancelListener { items.forEach { it.running.cancel() } }
+        
+        val job = scope.launch(start = CoroutineStart.LAZY) {
+            val results = arrayOfNulls<WritableMap>(items.size)
+            val probed = Channel<ProbeOutcome>(BATCH_PROBE_LOOKAHEAD)
+            
+            try {
+                runBatch(items, batchId, probed, results)
+            } catch (e: CancellationException) {
+                // Only teardown cancels the batch coroutine; cancelJob stops the items instead
+                promise.reject("CANCELLED", "Batch $batchId was cancelled", e)
+                throw e
+            }
+            
+            promise.resolve(WritableNativeArray().apply {
+                results.forEachIndexed { index, itemResult ->
+                    pushMap(itemResult ?: WritableNativeMap().apply {
+                        putInt("index", index)
+                        putString("jobId", items[index].jobId)
+                        putString("inputPath", items[index].inputPath)
+                        putString("status", "failed")
+                        putString("errorCode", "PROCESS_ERROR")
+                        putString("error", "Item was not processed")
+                    })
                 }
-                
-                if (inputFile.length() == 0L) {
-                    promise.reject("PROCESS_ERROR", "Input file is empty: $inputPath")
-                    return@launch
+            })
+        }
+        // Cancelling the batch id cancels every item through the listener above; the batch
+        // coroutine keeps running so it can settle the promise with the per-item outcomes
+        job.invokeOnCompletion {
+            batch.cancellation.setOnCancelListener(null)
+            runningJobs.remove(batchId)
+            items.forEach { runningJobs.remove(it.jobId) }
+        }
+        job.start()
+    }
+
+    /** Runs the probe and process stages of a batch, filling [results] by item index. */
+    private suspend fun runBatch(
+        items: List<BatchItem>, batchId: String, probed: Channel<ProbeOutcome>, results: Array<WritableMap?>
+    ) = coroutineScope {
+        // Probe stage; blocks once it is BATCH_PROBE_LOOKAHEAD items ahead
+        launch {
+            for (item in items) {
+                val outcome = try {
+                    item.running.cancellation.throwIfCanceled()
+                    ProbeOutcome(item, probeInput(item.inputPath, item.priority), null)
+                } catch (e: Exception) {
+                    ProbeOutcome(item, null, e)
                 }
-                
-                Log.d("VideoRecompression", "Starting video processing: $inputPath -> $outputPath")
-                
-                val startTime = System.currentTimeMillis()
-                val originalInfo = getVideoInfo(inputPath)
-                
-                // Ensure output directory exists
-                File(outputPath).parentFile?.mkdirs()
-                
-                // Analyze input and determine processing strategy
-                val inputContainer = getFileExtension(inputPath)
-                val currentVideoCodec = originalInfo.getString("videoCodec") ?: "unknown"
-                val currentAudioCodec = originalInfo.getString("audioCodec") ?: "unknown"
-                
-                // Get target settings with defaults
-                val targetVideoCodec = settings?.getString("videoCodec") ?: "h264"
-                val targetAudioCodec = settings?.getString("audioCodec") ?: "aac"
-                val targetContainer = "mp4"
-                val quality = settings?.getDouble("quality") ?: 0.8
-                
-                // Decision logic for processing strategy
-                val action = determineProcessingAction(
-                    inputContainer, currentVideoCodec, currentAudioCodec,
-                    targetContainer, targetVideoCodec, targetAudioCodec,
-                    originalInfo.getInt("videoBitrate"),
-                    originalInfo.getInt("audioBitrate"),
-                    settings?.getInt("videoBitrate") ?: 800000,
-                    settings?.getInt("audioBitrate") ?: 128000
-                )
-                
-                Log.d("VideoRecompression", "Processing action: $action")
-                Log.d("VideoRecompression", "Input: $inputContainer/$currentVideoCodec/$currentAudioCodec")
-                Log.d("VideoRecompression", "Target: $targetContainer/$targetVideoCodec/$targetAudioCodec")
-                
-                when (action) {
-                    "passthrough" -> {
-                        // Just copy the file - already in optimal format
-                        try {
-                            File(inputPath).copyTo(File(outputPath), overwrite = true)
-                            Log.d("VideoRecompression", "Passthrough copy completed successfully")
-                        } catch (e: Exception) {
-                            Log.e("VideoRecompression", "Failed to copy file during passthrough: ${e.message}", e)
-                            throw Exception("Failed to copy video file: ${e.message}", e)
-                        }
+                probed.send(outcome)
+            }
+            probed.close()
+        }
+        
+        // Process stage: enough workers to fill every rewrap and transcode slot
+        val workers = scheduler.limit(JobKind.REWRAP) + scheduler.limit(JobKind.TRANSCODE)
+        repeat(workers) {
+            launch {
+                for (outcome in probed) {
+                    val itemResult = processBatchItem(outcome)
+                    emitBatchItem(batchId, itemResult)
+                    results[outcome.item.index] = itemResult
+                }
+            }
+        }
+    }
+
+    /**
+     * Allocation and reuse counts of the sample buffer pool shared by all jobs, since the module
+     * was created.
+     */
+    @ReactMethod
+    fun getBufferPoolStats(promise: Promise) {
+        promise.resolve(WritableNativeMap().apply {
+            putDouble("allocations", bufferPool.allocations.toDouble())
+            putDouble("reuses", bufferPool.reuses.toDouble())
+        })
+    }
+
+    /**
+     * Status of a processVideo job by id, including jobs from before a restart: `pending`,
+     * `running`, `completed` with its result, `failed` or `cancelled` with the error; null if unknown.
+     */
+    @ReactMethod
+    fun getJobResult(jobId: String, promise: Promise) {
+        scope.launch {
+            try {
+                val record = jobQueue.status(jobId)
+                val status = when {
+                    runningJobs.containsKey(jobId) -> WritableNativeMap().apply {
+                        putString("jobId", jobId)
+                        putString("status", "running")
                     }
-                    "rewrap" -> {
-                        // Change container but keep codecs - use MediaMuxer
-                        try {
-                            Log.d("VideoRecompression", "Starting video rewrap process")
-                            rewrapVideo(inputPath, outputPath)
-                            Log.d("VideoRecompression", "Video rewrap completed successfully")
-                        } catch (e: Exception) {
-                            Log.e("VideoRecompression", "Failed to rewrap video: ${e.message}", e)
-                            throw Exception("Failed to rewrap video: ${e.message}", e)
-                        }
+                    record != null -> BridgeJson.fromJson(record)
+                    else -> null
+                }
+                promise.resolve(status)
+            } catch (e: Exception) {
+                promise.reject("QUEUE_ERROR", "Failed to read job status: ${e.message}", e)
+            }
+        }
+    }
+
+    @ReactMethod
+    fun cancelJob(jobId: String, promise: Promise) {
+        val running = runningJobs[jobId]
+        if (running == null) {
+            // Already finished or never existed
+            promise.resolve(false)
+            return
+        }
+        Log.d("VideoRecompression", "Cancelling job $jobId")
+        running.cancel()
+        promise.resolve(true)
+    }
+
+    // Required by NativeEventEmitter; progress events are only sent for jobs that asked for them
+    @ReactMethod
+    fun addListener(eventName: String) {
+    }
+
+    @ReactMethod
+    fun removeListeners(count: Int) {
+    }
+
+    private fun emitProgress(event: WritableMap) {
+        reactApplicationContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+            .emit(ProgressReporter.EVENT_NAME, event)
+    }
+
+    /**
+     * Opens the output: a regular MP4, or fragmented MP4 whose fragments are announced as they land
+     * and journaled, continuing after [checkpoint] if given.
+     */
+    private fun openWriter(
+        outputPath: String, settings: ReadableMap?, jobId: String, fragmented: Boolean,
+        journal: ResumeJournal?, checkpoint: ResumeJournal.Checkpoint?
+    ): SampleWriter {
+        if (!fragmented) return MediaMuxerWriter(outputPath)
+        val fragmentDurationUs = if (settings?.hasKey("fragmentDurationMs") == true) {
+            maxOf(MIN_FRAGMENT_DURATION_US, settings.getInt("fragmentDurationMs") * 1000L)
+        } else {
+            FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US
+        }
+        return FragmentedMp4Writer(
+            outputPath, fragmentDurationUs, checkpoint, journal?.let { it::record }, journal?.committed ?: emptyList()
+        ) { fragment ->
+            emitFragment(jobId, outputPath, fragment)
+        }
+    }
+
+    private fun emitFragment(jobId: String, outputPath: String, fragment: FragmentedMp4Writer.Fragment) {
+        val event = WritableNativeMap().apply {
+            putString("jobId", jobId)
+            putString("path", outputPath)
+            putInt("sequenceNumber", fragment.sequenceNumber)
+            putDouble("offset", fragment.offset.toDouble())
+            putDouble("length", fragment.length.toDouble())
+            putDouble("startTime", fragment.startUs / 1_000_000.0)
+            putDouble("duration", fragment.durationUs / 1_000_000.0)
+        }
+        reactApplicationContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+            .emit(FRAGMENT_EVENT, event)
+    }
+
+    private fun deletePartialOutput(inputPath: String, outputPath: String) {
+        val output = File(outputPath)
+        // Never delete the input, which an in-place passthrough may have returned as the output
+        if (sameFile(inputPath, outputPath) || !output.exists()) return
+        ResumeJournal.fileFor(outputPath).delete()
+        if (!output.delete()) {
+            Log.w("VideoRecompression", "Could not delete partial output: $outputPath")
+        }
+    }
+
+    /** Whether both paths name the same file, through symlinks, `..` and storage aliases. */
+    private fun sameFile(a: String, b: String): Boolean {
+        return try {
+            File(a).canonicalPath == File(b).canonicalPath
+        } catch (e: IOException) {
+            File(a).absolutePath == File(b).absolutePath
+        }
+    }
+
+    private fun priorityOf(settings: ReadableMap?): JobPriority {
+        return JobPriority.from(if (settings?.hasKey("priority") == true) settings.getString("priority") else null)
+    }
+
+    /** Validates the input and analyses it in a probe slot. */
+    private suspend fun probeInput(inputPath: String, priority: JobPriority): ProbedInput {
+        // Input validation
+        val inputFile = File(inputPath)
+        if (!inputFile.exists()) {
+            throw InputException("Input file does not exist: $inputPath")
+        }
+        
+        if (!inputFile.canRead()) {
+            throw InputException("Cannot read input file: $inputPath")
+        }
+        
+        if (inputFile.length() == 0L) {
+            throw InputException("Input file is empty: $inputPath")
+        }
+        
+        return scheduler.run(JobKind.PROBE, priority) {
+            val mp4Info = probeMp4(inputPath)
+            val originalInfo = getVideoInfo(inputPath, mp4Info).apply {
+                putString("fingerprint", Fingerprint.sparse(inputFile))
+            }
+            ProbedInput(mp4Info, originalInfo)
+        }
+    }
+
+    /**
+     * Serves the job from the result cache, or runs it and caches the output.
+     *
+     * Identical jobs that overlap share one computation: the first runs it while the others wait for
+     * it to finish, then restore its output from the cache. If it fails or leaves nothing cached,
+     * the next waiter runs the job itself.
+     */
+    private suspend fun runCachedJob(
+        inputPath: String, outputPath: String, settings: ReadableMap?, jobId: String,
+        cancellation: CancellationSignal, probed: ProbedInput, priority: JobPriority, startTime: Long
+    ): WritableMap {
+        val useCache = settings?.hasKey("useCache") == true && settings.getBoolean("useCache")
+        // Fragment events are only sent while the output is being written
+        val fragmented = settings?.hasKey("fragmentedOutput") == true && settings.getBoolean("fragmentedOutput")
+        if (!useCache || fragmented) {
+            return runJob(inputPath, outputPath, settings, jobId, cancellation, probed, priority, startTime)
+        }
+        
+        val fingerprint = if (settings?.hasKey("fingerprint") == true && settings.getString("fingerprint") == "full") {
+            scheduler.run(JobKind.PROBE, priority) { Fingerprint.full(File(inputPath), cancellation) }
+        } else {
+            probed.originalInfo.getString("fingerprint") ?: Fingerprint.sparse(File(inputPath))
+        }
+        val key = resultCache.keyFor(fingerprint, settings)
+        while (true) {
+            cancellation.throwIfCanceled()
+            resultCache.restore(key, outputPath, cancellation) { createdOutputs.add(jobId) }?.let { cached ->
+                Log.d("VideoRecompression", "Job $jobId served from the result cache")
+                return cached.apply {
+                    putString("jobId", jobId)
+                    putString("outputPath", outputPath)
+                    putBoolean("cached", true)
+                    putDouble("processingTime", (System.currentTimeMillis() - startTime).toDouble())
+                }
+            }
+            
+            val flight = CompletableDeferred<Unit>()
+            val leader = inFlight.putIfAbsent(key, flight)
+            if (leader != null) {
+                Log.d("VideoRecompression", "Job $jobId waits for an identical job in flight")
+                leader.await()
+                continue
+            }
+            try {
+                val result = runJob(inputPath, outputPath, settings, jobId, cancellation, probed, priority, startTime)
+                // Passthrough costs no more than restoring, and may return the input itself
+                if (result.getString("action") != "passthrough") {
+                    resultCache.store(key, outputPath, result)
+                }
+                return result
+            } finally {
+                inFlight.remove(key, flight)
+                flight.complete(Unit)
+            }
+        }
+    }
+
+    /** Decides and runs the processing for an already probed input; returns the CompressionResult. */
+    private suspend fun runJob(
+        inputPath: String, outputPath: String, settings: ReadableMap?, jobId: String,
+        cancellation: CancellationSignal, probed: ProbedInput, priority: JobPriority, startTime: Long
+    ): WritableMap {
+        Log.d("VideoRecompression", "Starting video processing: $inputPath -> $outputPath")
+        val inputMp4 = probed.mp4Info
+        val originalInfo = probed.originalInfo
+        
+        // Ensure output directory exists
+        File(outputPath).parentFile?.mkdirs()
+        
+        val plan = planJob(inputPath, settings, originalInfo)
+        val action = plan.action
+        val trackActions = plan.trackActions
+        val trim = plan.trim
+        val fragmentedOutput = plan.fragmentedOutput
+        val sizeBudget = plan.sizeBudget
+        val progress = ProgressReporter.from(settings, jobId, plan.outputDurationUs, ::emitProgress)
+        val interleaveWindowUs = if (settings?.hasKey("interleaveWindowMs") == true) {
+            settings.getInt("interleaveWindowMs") * 1000L
+        } else {
+            InterleavedCopier.DEFAULT_INTERLEAVE_WINDOW_US
+        }
+        // Fragmented output can be journaled, so an interrupted job continues after its last fragment
+        val resumable = fragmentedOutput && (settings?.hasKey("resumable") != true || settings.getBoolean("resumable"))
+        val (journal, resumeFrom) = if (resumable) {
+            ResumeJournal.open(outputPath, resultCache.keyFor(originalInfo.getString("fingerprint") ?: inputPath, settings))
+        } else {
+            null to null
+        }
+        var checkpoint = resumeFrom
+        val writerFactory = {
+            createdOutputs.add(jobId)
+            openWriter(outputPath, settings, jobId, fragmentedOutput, journal, checkpoint)
+        }
+        // Same default as the iOS export session
+        val fastStart = settings?.hasKey("optimizeForNetwork") != true || settings.getBoolean("optimizeForNetwork")
+        
+        var resultPath = outputPath
+        var passthroughStrategy: String? = null
+        // Only the heavy stage holds a rewrap or transcode slot
+        val jobKind = if (action == "recompress") JobKind.TRANSCODE else JobKind.REWRAP
+        var workTime = 0L
+        val muxStats: MuxStats? = scheduler.run(jobKind, priority) {
+            val workStart = System.currentTimeMillis()
+            fun process(): MuxStats? = when (action) {
+                "passthrough" -> {
+                    // Already in optimal format - link or kernel-copy instead of streaming the bytes
+                    try {
+                        val allowInPlace = settings?.hasKey("allowInPlace") == true && settings.getBoolean("allowInPlace")
+                        // Anything but an in-place result replaces the output file
+                        if (!allowInPlace && !sameFile(inputPath, outputPath)) createdOutputs.add(jobId)
+                        val passthrough = Passthrough.run(inputPath, outputPath, allowInPlace, cancellation)
+                        resultPath = passthrough.outputPath
+                        passthroughStrategy = passthrough.strategy
+                        Log.d("VideoRecompression", "Passthrough completed successfully (${passthrough.strategy})")
+                        null
+                    } catch (e: Exception) {
+                        Log.e("VideoRecompression", "Failed to copy file during passthrough: ${e.message}", e)
+                        throw Exception("Failed to copy video file: ${e.message}", e)
                     }
-                    "recompress" -> {
-                        // Full transcoding needed
-                        try {
-                            Log.d("VideoRecompression", "Starting video transcoding process")
-                            transcodeVideo(inputPath, outputPath, settings)
-                            Log.d("VideoRecompression", "Video transcoding completed successfully")
-                        } catch (e: Exception) {
-                            Log.e("VideoRecompression", "Failed to transcode video: ${e.message}", e)
-                            throw Exception("Failed to transcode video: ${e.message}", e)
+                }
+                "rewrap" -> {
+                    // Change container but keep codecs - use MediaMuxer
+                    try {
+                        Log.d("VideoRecompression", "Starting video rewrap process")
+                        val stats = if (trim == null && checkpoint == null) {
+                            rewrapVideo(inputPath, writerFactory, inputMp4, interleaveWindowUs, cancellation, progress)
+                        } else {
+                            // Every track is copied, only the partial GOPs at the cut points are encoded
+                            transcodeVideo(
+                                inputPath, writerFactory, settings, inputMp4, originalInfo, trackActions, interleaveWindowUs,
+                                cancellation, progress, trim, checkpoint, sizeBudget
+                            )
                         }
+                        Log.d("VideoRecompression", "Video rewrap completed successfully")
+                        stats
+                    } catch (e: Exception) {
+                        Log.e("VideoRecompression", "Failed to rewrap video: ${e.message}", e)
+                        throw Exception("Failed to rewrap video: ${e.message}", e)
                     }
                 }
-                
-                // Validate output file was created successfully
-                val outputFile = File(outputPath)
-                if (!outputFile.exists() || outputFile.length() == 0L) {
-                    throw Exception("Output file was not created or is empty: $outputPath")
-                }
-                
-                Log.d("VideoRecompression", "Video processing completed successfully. Output size: ${outputFile.length()} bytes")
-                
-                val finalInfo = getVideoInfo(outputPath)
-                val processingTime = System.currentTimeMillis() - startTime
-                
-                val result = WritableNativeMap().apply {
-                    putString("outputPath", outputPath)
-                    putString("action", action)
-                    putMap("originalInfo", originalInfo)
-                    putMap("finalInfo", finalInfo)
-                    putDouble("processingTime", processingTime.toDouble())
+                "recompress" -> {
+                    // Encode the tracks that miss their target, stream-copy the rest
+                    try {
+                        Log.d("VideoRecompression", "Starting video transcoding process")
+                        val stats = transcodeVideo(
+                            inputPath, writerFactory, settings, inputMp4, originalInfo, trackActions, interleaveWindowUs,
+                            cancellation, progress, trim, checkpoint, sizeBudget
+                        )
+                        Log.d("VideoRecompression", "Video transcoding completed successfully")
+                        stats
+                    } catch (e: Exception) {
+                        Log.e("VideoRecompression", "Failed to transcode video: ${e.message}", e)
+                        throw Exception("Failed to transcode video: ${e.message}", e)
+                    }
                 }
-                
-                promise.resolve(result)
+                else -> null
+            }
+            val written = try {
+                process()
             } catch (e: Exception) {
-                Log.e("VideoRecompression", "Failed to process video", e)
-                promise.reject("PROCESS_ERROR", "Failed to process video: ${e.message}", e)
+                if (checkpoint == null || e.cause !is ResumeMismatchException) throw e
+                Log.w("VideoRecompression", "Cannot resume $outputPath, starting over: ${e.cause?.message}")
+                checkpoint = null
+                journal?.delete()
+                process()
             }
+            // The cost model covers the processing itself; the moov move depends on the output size only
+            workTime = System.currentTimeMillis() - workStart
+            // Fragmented output already starts with its moov; passthrough output is the untouched input
+            if (written != null && fastStart && !fragmentedOutput) {
+                val moved = FastStart.apply(outputPath, cancellation)
+                Log.d("VideoRecompression", if (moved) "Moved moov to the front" else "Output already fast-start")
+            }
+            written
+        }
+        
+        // A cancel that lands after the last check still discards the output
+        cancellation.throwIfCanceled()
+        journal?.delete()
+        
+        // Validate output file was created successfully
+        val outputFile = File(resultPath)
+        if (!outputFile.exists() || outputFile.length() == 0L) {
+            throw Exception("Output file was not created or is empty: $resultPath")
+        }
+        
+        progress?.finish()
+        Log.d("VideoRecompression", "Video processing completed successfully. Output size: ${outputFile.length()} bytes")
+        // Resumed and segmented jobs did only part of the work, or did it at a different rate. In-place
+        // and hardlinked passthroughs move no bytes, so they would drag the per-MB copy rate to zero
+        val parallel = settings?.hasKey("parallelTranscode") == true && settings.getBoolean("parallelTranscode")
+        val copiedBytes = passthroughStrategy == null || passthroughStrategy == "transfer"
+        if (resumeFrom == null && !parallel && copiedBytes) {
+            costModel.record(plan.work, workTime, plan.plannedEncodedSize, outputFile.length())
         }
+        
+        // Describe the output from what was written instead of probing it again
+        val finalInfo = if (muxStats != null) {
+            muxStats.toVideoInfo(outputPath, outputFile.length())
+        } else {
+            // Passthrough output is byte-identical to the input
+            WritableNativeMap().apply { merge(originalInfo) }
+        }
+        val processingTime = System.currentTimeMillis() - startTime
+        
+        val result = WritableNativeMap().apply {
+            putString("jobId", jobId)
+            putString("outputPath", resultPath)
+            putString("action", action)
+            putBoolean("cached", false)
+            putMap("trackActions", WritableNativeMap().apply {
+                putString("video", trackActions.video)
+                putString("audio", trackActions.audio)
+            })
+            passthroughStrategy?.let { putString("passthroughStrategy", it) }
+            putMap("originalInfo", originalInfo)
+            putMap("finalInfo", finalInfo)
+            putDouble("processingTime", processingTime.toDouble())
+            checkpoint?.let { putDouble("resumedFrom", it.resumeUs / 1_000_000.0) }
+            if (sizeBudget != null) {
+                val actualSize = outputFile.length()
+                if (actualSize > sizeBudget.targetBytes) {
+                    Log.w("VideoRecompression", "Output of $actualSize bytes exceeds targetFileSize of ${sizeBudget.targetBytes} bytes")
+                }
+                putMap("targetSize", WritableNativeMap().apply {
+                    putDouble("target", sizeBudget.targetBytes.toDouble())
+                    putDouble("predicted", plan.predictedSize.toDouble())
+                    putDouble("actual", actualSize.toDouble())
+                    putBoolean("met", actualSize <= sizeBudget.targetBytes)
+                })
+            }
+            // The checksum only covers what this run wrote, so a resumed job has none
+            muxStats?.takeIf { checkpoint == null }?.let { stats ->
+                putMap("integrity", WritableNativeMap().apply {
+                    putString("crc32", stats.checksum)
+                    putInt("sampleCount", stats.sampleCount)
+                    putArray("sampleCountMismatches", WritableNativeArray().apply {
+                        stats.sampleCountMismatches.forEach { pushString(it) }
+                    })
+                })
+            }
+        }
+        
+        return result
     }
 
-    private fun getVideoInfo(filePath: String): WritableMap {
+    /** Decides how [runJob] would process an input and predicts what that costs. */
+    private fun planJob(inputPath: String, settings: ReadableMap?, originalInfo: ReadableMap): JobPlan {
+        // Analyze input and determine processing strategy
+        val inputContainer = getFileExtension(inputPath)
+        val currentVideoCodec = originalInfo.getString("videoCodec") ?: "unknown"
+        val currentAudioCodec = originalInfo.getString("audioCodec") ?: "unknown"
+        
+        // Get target settings with defaults
+        val targetVideoCodec = (if (settings?.hasKey("videoCodec") == true) settings.getString("videoCodec") ?: "h264" else "h264")
+            .let { if (it == "h265") "hevc" else it }
+        val targetAudioCodec = if (settings?.hasKey("audioCodec") == true) settings.getString("audioCodec") ?: "aac" else "aac"
+        // AudioTranscoder only has an AAC encoder path
+        if (targetAudioCodec != "aac") {
+            throw SettingsException("audioCodec '$targetAudioCodec' is not supported; only 'aac' can be encoded")
+        }
+        val targetContainer = "mp4"
+        val policy = CompressionPolicy.from(settings)
+        val durationUs = (originalInfo.getDouble("duration") * 1_000_000).toLong()
+        val trim = TrimRange.from(settings, durationUs)
+        val outputDurationUs = trim?.lengthUs(durationUs) ?: durationUs
+        val fragmentedOutput = settings?.hasKey("fragmentedOutput") == true && settings.getBoolean("fragmentedOutput")
+        
+        // Decide per track, then derive the strategy for the file as a whole
+        var trackActions = determineTrackActions(
+            originalInfo, targetVideoCodec, targetAudioCodec, policy
+        )
+        // A size target re-encodes video that would not fit as a copy
+        val sizeBudget = SizeBudget.from(settings, originalInfo, trackActions, outputDurationUs)
+        val sourceVideoBitrate = originalInfo.getInt("videoBitrate")
+        if (sizeBudget != null && trackActions.video == "copy" && copiedSize(originalInfo, trackActions, sizeBudget, durationUs) > sizeBudget.targetBytes) {
+            Log.d("VideoRecompression", "Copied video would exceed targetFileSize; encoding it")
+            trackActions = trackActions.copy(video = "encode")
+        }
+        val action = when {
+            // A passthrough copy would not be fragmented or trimmed, so those always remux
+            trackActions.copyOnly && inputContainer == targetContainer && !fragmentedOutput && trim == null -> "passthrough"
+            trackActions.copyOnly -> "rewrap"
+            else -> "recompress"
+        }
+        
+        if (fragmentedOutput) {
+            // Checked before any codec starts, so an unsupported combination fails without output
+            val videoOut = when (trackActions.video) {
+                "encode" -> targetVideoCodec
+                "copy" -> currentVideoCodec
+                else -> null
+            }
+            val audioOut = when (trackActions.audio) {
+                "encode" -> "aac"
+                "copy" -> currentAudioCodec
+                else -> null
+            }
+            listOfNotNull(videoOut, audioOut).firstOrNull { !FragmentedMp4Writer.supports(formatForCodec(it)) }?.let { codec ->
+                throw IllegalArgumentException("fragmentedOutput supports H.264 video and AAC audio only; this job would write $codec")
+            }
+        }
+        
+        Log.d("VideoRecompression", "Processing action: $action")
+        Log.d("VideoRecompression", "Input: $inputContainer/$currentVideoCodec/$currentAudioCodec")
+        Log.d("VideoRecompression", "Target: $targetContainer/$targetVideoCodec/$targetAudioCodec")
+        
+        // The encoder plan from the probed info matches what transcodeVideo derives from the track
+        val encodeConfig = if (trackActions.video == "encode") {
+            val videoFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, originalInfo.getInt("width"), originalInfo.getInt("height")).apply {
+                setInteger("rotation-degrees", originalInfo.getInt("rotation"))
+            }
+            VideoEncodeConfig.plan(videoFormat, settings, sourceVideoBitrate, originalInfo.getDouble("frameRate"))
+        } else {
+            null
+        }
+        val videoBitrate = when {
+            encodeConfig != null && sizeBudget != null -> sizeBudget.encodeBitrate(sourceVideoBitrate)
+            encodeConfig != null -> encodeConfig.bitrate
+            else -> sourceVideoBitrate
+        }
+        val audioBitrate = when (trackActions.audio) {
+            "encode" -> SizeBudget.audioBitrateFor(settings)
+            "copy" -> originalInfo.getInt("audioBitrate")
+            else -> 0
+        }
+        val plannedSize = SizeBudget.overheadBytes(originalInfo, trackActions, outputDurationUs) +
+            (videoBitrate.toLong() + audioBitrate) * outputDurationUs / 8_000_000
+        // Size-targeted encodes are steered onto their plan, so they would not teach the model anything
+        val plannedEncodedSize = if (action == "recompress" && sizeBudget == null) plannedSize else null
+        
+        val fileSize = originalInfo.getDouble("fileSize")
+        val lengthFraction = if (durationUs > 0) outputDurationUs.toDouble() / durationUs else 1.0
+        val seconds = outputDurationUs / 1_000_000.0
+        val predictedSize = when {
+            action == "passthrough" -> fileSize.toLong()
+            action == "rewrap" -> (fileSize * lengthFraction).toLong()
+            plannedEncodedSize != null -> costModel.predictEncodedSize(plannedEncodedSize)
+            else -> plannedSize
+        }
+        val work = when (action) {
+            "passthrough" -> CostModel.Work(passthroughMegabytes = fileSize / 1_000_000)
+            "rewrap" -> CostModel.Work(copyMegabytes = fileSize * lengthFraction / 1_000_000)
+            else -> {
+                val copiedBitrate = (if (trackActions.video == "copy") sourceVideoBitrate else 0) +
+                    (if (trackActions.audio == "copy") audioBitrate else 0)
+                CostModel.Work(
+                    copyMegabytes = copiedBitrate * seconds / 8 / 1_000_000,
+                    // Every output frame is decoded at the source size and encoded at the output size
+                    videoMegapixels = encodeConfig?.let { config ->
+                        val sourcePixels = originalInfo.getInt("width").toDouble() * originalInfo.getInt("height")
+                        config.frameRate * seconds * (sourcePixels + config.width * config.height) / 1_000_000
+                    } ?: 0.0,
+                    videoCodec = if (encodeConfig?.mime == MediaFormat.MIMETYPE_VIDEO_HEVC) "hevc" else "h264",
+                    audioSeconds = if (trackActions.audio == "encode") seconds else 0.0
+                )
+            }
+        }
+        return JobPlan(
+            action, trackActions, trim, outputDurationUs, fragmentedOutput, sizeBudget, work, plannedEncodedSize, predictedSize
+        )
+    }
+
+    /**
+     * Size of the output with the video stream-copied, from the input's real size rather than its
+     * nominal bitrate, which container metadata often understates. An encoded audio track replaces
+     * the source audio's share.
+     */
+    private fun copiedSize(originalInfo: ReadableMap, trackActions: TrackActions, sizeBudget: SizeBudget, durationUs: Long): Long {
+        val lengthFraction = if (durationUs > 0) sizeBudget.durationUs.toDouble() / durationUs else 1.0
+        var bytes = (originalInfo.getDouble("fileSize") * lengthFraction).toLong()
+        if (trackActions.audio != "copy") {
+            bytes -= originalInfo.getInt("audioBitrate").toLong() * sizeBudget.durationUs / 8_000_000
+            bytes += sizeBudget.audioBitrate.toLong() * sizeBudget.durationUs / 8_000_000
+        }
+        return bytes
+    }
+
+    /** Bare format carrying the mime type of a codec name as reported in VideoInfo. */
+    private fun formatForCodec(codec: String): MediaFormat = MediaFormat().apply {
+        setString(MediaFormat.KEY_MIME, when (codec) {
+            "h264" -> MediaFormat.MIMETYPE_VIDEO_AVC
+            "hevc" -> MediaFormat.MIMETYPE_VIDEO_HEVC
+            "aac" -> MediaFormat.MIMETYPE_AUDIO_AAC
+            else -> "application/x-$codec"
+        })
+    }
+
+    /** Cleans up after a failed job and returns the promise rejection code and message. */
+    private fun jobFailure(
+        jobId: String, inputPath: String, outputPath: String, cancellation: CancellationSignal, e: Exception
+    ): Pair<String, String> {
+        if (e is InputException) {
+            return "PROCESS_ERROR" to (e.message ?: "Invalid input")
+        }
+        if (e is SettingsException) {
+            return "INVALID_SETTINGS" to (e.message ?: "Invalid settings")
+        }
+        // Validation failures and cache hits that never wrote leave an existing output alone
+        if (createdOutputs.remove(jobId)) deletePartialOutput(inputPath, outputPath)
+        return if (cancellation.isCanceled) {
+            Log.d("VideoRecompression", "Job $jobId cancelled")
+            "CANCELLED" to "Job $jobId was cancelled"
+        } else {
+            Log.e("VideoRecompression", "Failed to process video", e)
+            "PROCESS_ERROR" to "Failed to process video: ${e.message}"
+        }
+    }
+
+    private fun batchItem(batchId: String, index: Int, job: ReadableMap?, batchSettings: ReadableMap?): BatchItem {
+        if (job == null) throw IllegalArgumentException("Item $index is not an object")
+        val inputPath = job.getString("inputPath") ?: throw IllegalArgumentException("Item $index has no inputPath")
+        val outputPath = job.getString("outputPath") ?: throw IllegalArgumentException("Item $index has no outputPath")
+        val jobId = (if (job.hasKey("jobId")) job.getString("jobId") else null)
+            ?.takeIf { it.isNotEmpty() } ?: "$batchId-$index"
+        // Item settings override the batch settings key by key
+        val settings = WritableNativeMap().apply {
+            batchSettings?.let { merge(it) }
+            if (job.hasKey("settings")) job.getMap("settings")?.let { merge(it) }
+            putString("jobId", jobId)
+        }
+        return BatchItem(index, jobId, inputPath, outputPath, settings, priorityOf(settings), RunningJob(CancellationSignal()))
+    }
+
+    private suspend fun processBatchItem(outcome: ProbeOutcome): WritableMap {
+        val item = outcome.item
+        val itemResult = WritableNativeMap().apply {
+            putInt("index", item.index)
+            putString("jobId", item.jobId)
+            putString("inputPath", item.inputPath)
+        }
+        try {
+            outcome.error?.let { throw it }
+            coroutineScope {
+                val itemJob = async {
+                    runCachedJob(
+                        item.inputPath, item.outputPath, item.settings, item.jobId, item.running.cancellation,
+                        outcome.input!!, item.priority, System.currentTimeMillis()
+                    )
+                }
+                item.running.job = itemJob
+                item.running.cancellation.throwIfCanceled()
+                val result = itemJob.await()
+                itemResult.putString("status", "completed")
+                itemResult.putMap("result", result)
+            }
+        } catch (e: Exception) {
+            val (code, message) = jobFailure(item.jobId, item.inputPath, item.outputPath, item.running.cancellation, e)
+            itemResult.putString("status", if (code == "CANCELLED") "cancelled" else "failed")
+            itemResult.putString("errorCode", code)
+            itemResult.putString("error", message)
+        }
+        runningJobs.remove(item.jobId)
+        createdOutputs.remove(item.jobId)
+        return itemResult
+    }
+
+    private fun emitBatchItem(batchId: String, itemResult: WritableMap) {
+        // The map is consumed by the bridge, so the batch result keeps its own copy
+        val event = WritableNativeMap().apply {
+            merge(itemResult)
+            putString("batchId", batchId)
+        }
+        reactApplicationContext
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter::class.java)
+            .emit(BATCH_ITEM_EVENT, event)
+    }
+
+    private fun probeMp4(filePath: String): Mp4Info? {
+        return try {
+            Mp4Probe.probe(File(filePath))
+        } catch (e: Exception) {
+            Log.w("VideoRecompression", "Mp4Probe failed, falling back to MediaExtractor: ${e.message}")
+            null
+        }
+    }
+
+    private fun getVideoInfo(filePath: String, mp4Info: Mp4Info? = probeMp4(filePath)): WritableMap {
+        // Fast path: parse ftyp/moov directly for MP4/MOV without starting native parsers
+        if (mp4Info != null && (mp4Info.videoTrack != null || mp4Info.audioTrack != null)) {
+            return buildVideoInfo(filePath, mp4Info)
+        }
+        
+        return getVideoInfoWithExtractor(filePath)
+    }
+
+    private fun buildVideoInfo(filePath: String, mp4Info: Mp4Info): WritableMap {
+        val videoTrack = mp4Info.videoTrack
+        val audioTrack = mp4Info.audioTrack
+        return WritableNativeMap().apply {
+            putString("container", getFileExtension(filePath))
+            putString("videoCodec", videoTrack?.codec ?: "unknown")
+            putString("audioCodec", audioTrack?.codec ?: "none")
+            putInt("width", videoTrack?.width ?: 0)
+            putInt("height", videoTrack?.height ?: 0)
+            putInt("rotation", videoTrack?.rotation ?: 0)
+            putDouble("duration", mp4Info.durationSeconds)
+            putInt("videoBitrate", videoTrack?.bitrate ?: 0)
+            putInt("audioBitrate", audioTrack?.bitrate ?: 0)
+            putDouble("frameRate", videoTrack?.averageFrameRate ?: 0.0)
+            putDouble("peakFrameRate", videoTrack?.peakFrameRate ?: 0.0)
+            putDouble("fileSize", File(filePath).length().toDouble())
+        }
+    }
+
+    private fun getVideoInfoWithExtractor(filePath: String): WritableMap {
         val retriever = MediaMetadataRetriever()
         val extractor = MediaExtractor()
         
@@ -199,12 +1107,17 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
             // Get basic video properties from MediaMetadataRetriever
             val width = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)?.toIntOrNull() ?: 0
             val height = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)?.toIntOrNull() ?: 0
+            val rotation = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)?.toIntOrNull() ?: 0
             val duration = (retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)?.toLongOrNull() ?: 0L) / 1000.0
-            val frameRate = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CAPTURE_FRAMERATE)?.toDoubleOrNull() ?: 30.0
             val fileSize = File(filePath).length().toDouble()
             
             // Analyze tracks using MediaExtractor for accurate codec and bitrate detection
-            val trackInfo = analyzeTracksWithExtractor(extractor, duration)
+            val trackInfo = analyzeTracksWithExtractor(extractor, duration, fileSize)
+            val frameRate = if (trackInfo.frameRate > 0) {
+                trackInfo.frameRate
+            } else {
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CAPTURE_FRAMERATE)?.toDoubleOrNull() ?: 0.0
+            }
             
             WritableNativeMap().apply {
                 putString("container", getFileExtension(filePath))
@@ -212,10 +1125,12 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
                 putString("audioCodec", trackInfo.audioCodec)
                 putInt("width", width)
                 putInt("height", height)
+                putInt("rotation", rotation)
                 putDouble("duration", duration)
                 putInt("videoBitrate", trackInfo.videoBitrate)
                 putInt("audioBitrate", trackInfo.audioBitrate)
                 putDouble("frameRate", frameRate)
+                putDouble("peakFrameRate", frameRate)
                 putDouble("fileSize", fileSize)
             }
         } catch (e: Exception) {
@@ -226,10 +1141,12 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
                 putString("audioCodec", "unknown")
                 putInt("width", 0)
                 putInt("height", 0)
+                putInt("rotation", 0)
                 putDouble("duration", 0.0)
                 putInt("videoBitrate", 0)
                 putInt("audioBitrate", 0)
                 putDouble("frameRate", 0.0)
+                putDouble("peakFrameRate", 0.0)
                 putDouble("fileSize", File(filePath).length().toDouble())
             }
         } finally {
@@ -242,11 +1159,12 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
         }
     }
 
-    private fun analyzeTracksWithExtractor(extractor: MediaExtractor, durationSeconds: Double): TrackInfo {
+    private fun analyzeTracksWithExtractor(extractor: MediaExtractor, durationSeconds: Double, fileSize: Double): TrackInfo {
         var videoCodec = "unknown"
         var audioCodec = "unknown"
         var videoBitrate = 0
         var audioBitrate = 0
+        var frameRate = 0.0
         
         try {
             val trackCount = extractor.trackCount
@@ -258,42 +1176,18 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
                 when {
                     mime.startsWith("video/") -> {
                         // Detect video codec from MIME type
-                        videoCodec = when {
-                            mime.contains("avc") || mime.contains("h264") -> "h264"
-                            mime.contains("hevc") || mime.contains("h265") -> "hevc"
-                            mime.contains("vp8") -> "vp8"
-                            mime.contains("vp9") -> "vp9"
-                            mime.contains("av01") -> "av1"
-                            else -> "unknown"
-                        }
+                        videoCodec = videoCodecFromMime(mime)
                         
-                        // Get video bitrate from format
-                        videoBitrate = if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
-                            format.getInteger(MediaFormat.KEY_BIT_RATE)
-                        } else {
-                            // Fallback: estimate from file size if duration available
-                            if (durationSeconds > 0) {
-                                // Rough estimate: assume 80% of file is video
-                                val fileSize = try { 
-                                    // This is approximate since we don't have direct access to file here
-                                    // In practice, this would be calculated differently
-                                    0 
-                                } catch (e: Exception) { 0 }
-                                if (fileSize > 0) (fileSize * 8 * 0.8 / durationSeconds).toInt() else 0
-                            } else 0
+                        // Get video bitrate from format; derived from the file size below if missing
+                        if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+                            videoBitrate = format.getInteger(MediaFormat.KEY_BIT_RATE)
                         }
+                        frameRate = getFrameRate(format)
                     }
                     
                     mime.startsWith("audio/") -> {
                         // Detect audio codec from MIME type
-                        audioCodec = when {
-                            mime.contains("mp4a") || mime.contains("aac") -> "aac"
-                            mime.contains("mp3") -> "mp3"
-                            mime.contains("opus") -> "opus"
-                            mime.contains("vorbis") -> "vorbis"
-                            mime.contains("flac") -> "flac"
-                            else -> "unknown"
-                        }
+                        audioCodec = audioCodecFromMime(mime)
                         
                         // Get audio bitrate from format
                         audioBitrate = if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
@@ -317,6 +1211,12 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
                 audioBitrate = 0
             }
             
+            // Fallback: whatever the audio track doesn't account for is attributed to video
+            if (videoBitrate == 0 && videoCodec != "unknown" && durationSeconds > 0 && fileSize > 0) {
+                val totalBitrate = (fileSize * 8 / durationSeconds).toInt()
+                videoBitrate = maxOf(0, totalBitrate - audioBitrate)
+            }
+            
         } catch (e: Exception) {
             Log.w("VideoRecompression", "Error analyzing tracks with extractor: ${e.message}")
             // Return fallback values
@@ -324,67 +1224,77 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
             audioCodec = "unknown" 
             videoBitrate = 0
             audioBitrate = 0
+            frameRate = 0.0
         }
         
-        return TrackInfo(videoCodec, audioCodec, videoBitrate, audioBitrate)
+        return TrackInfo(videoCodec, audioCodec, videoBitrate, audioBitrate, frameRate)
+    }
+    
+    private fun getFrameRate(format: MediaFormat): Double {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) return 0.0
+        // Extractors store the frame rate as either an Integer or a Float
+        return try {
+            format.getInteger(MediaFormat.KEY_FRAME_RATE).toDouble()
+        } catch (e: ClassCastException) {
+            format.getFloat(MediaFormat.KEY_FRAME_RATE).toDouble()
+        }
     }
 
-    private fun determineProcessingAction(
-        inputContainer: String, currentVideoCodec: String, currentAudioCodec: String,
-        targetContainer: String, targetVideoCodec: String, targetAudioCodec: String,
-        currentVideoBitrate: Int = 0, currentAudioBitrate: Int = 0,
-        targetVideoBitrate: Int = 800000, targetAudioBitrate: Int = 128000
-    ): String {
-        
-        // Define thresholds for chat optimization
-        val videoRecompressionThreshold = 2000000 // 2 Mbps - recompress if higher
-        val audioRecompressionThreshold = 192000  // 192 kbps - recompress if higher
-        
-        // 1. Check if codecs match target
-        val codecsMatch = currentVideoCodec == targetVideoCodec && currentAudioCodec == targetAudioCodec
-        
-        // 2. Check if container matches target
-        val containerMatches = inputContainer == targetContainer
+    private fun determineTrackActions(
+        originalInfo: ReadableMap, targetVideoCodec: String, targetAudioCodec: String,
+        policy: CompressionPolicy
+    ): TrackActions {
+        val currentVideoCodec = originalInfo.getString("videoCodec") ?: "unknown"
+        val currentAudioCodec = originalInfo.getString("audioCodec") ?: "unknown"
+        val width = originalInfo.getInt("width")
+        val height = originalInfo.getInt("height")
+        val rotated = originalInfo.getInt("rotation").let { it == 90 || it == 270 }
+        val displayWidth = if (rotated) height else width
+        val displayHeight = if (rotated) width else height
+        val hasVideo = width > 0 || currentVideoCodec != "unknown"
         
-        // 3. Check if bitrates are reasonable for chat
-        val videoBitrateReasonable = currentVideoBitrate <= videoRecompressionThreshold
-        val audioBitrateReasonable = currentAudioBitrate <= audioRecompressionThreshold
+        // Each track is judged on its own: a track that already meets its target is stream-copied
+        val videoCodecMatches = currentVideoCodec == targetVideoCodec
+        val audioCodecMatches = currentAudioCodec == targetAudioCodec
+        val videoReason = policy.videoEncodeReason(
+            displayWidth, displayHeight, originalInfo.getDouble("frameRate"), originalInfo.getInt("videoBitrate")
+        )
+        val audioReason = policy.audioEncodeReason(originalInfo.getInt("audioBitrate"))
         
         Log.d("VideoRecompression", "Decision factors:")
-        Log.d("VideoRecompression", "  Codecs match: $codecsMatch ($currentVideoCodec==$targetVideoCodec, $currentAudioCodec==$targetAudioCodec)")
-        Log.d("VideoRecompression", "  Container matches: $containerMatches ($inputContainer==$targetContainer)")
-        Log.d("VideoRecompression", "  Video bitrate reasonable: $videoBitrateReasonable ($currentVideoBitrate <= $videoRecompressionThreshold)")
-        Log.d("VideoRecompression", "  Audio bitrate reasonable: $audioBitrateReasonable ($currentAudioBitrate <= $audioRecompressionThreshold)")
+        Log.d("VideoRecompression", "  Video codec matches: $videoCodecMatches ($currentVideoCodec==$targetVideoCodec)")
+        Log.d("VideoRecompression", "  Audio codec matches: $audioCodecMatches ($currentAudioCodec==$targetAudioCodec)")
+        Log.d("VideoRecompression", "  Video within policy: ${videoReason ?: "yes (${displayWidth}x$displayHeight)"}")
+        Log.d("VideoRecompression", "  Audio within policy: ${audioReason ?: "yes"}")
         
-        return when {
-            // Perfect case: everything matches and bitrates are reasonable
-            codecsMatch && containerMatches && videoBitrateReasonable && audioBitrateReasonable -> {
-                Log.d("VideoRecompression", "Decision: PASSTHROUGH - Already optimal")
-                "passthrough"
-            }
-            
-            // Good codecs but wrong container or slightly high bitrate but within rewrap threshold
-            codecsMatch && videoBitrateReasonable && audioBitrateReasonable -> {
-                Log.d("VideoRecompression", "Decision: REWRAP - Correct codecs, change container or minor optimization")
-                "rewrap"
-            }
-            
-            // High bitrates or wrong codecs - need full recompression
-            else -> {
-                Log.d("VideoRecompression", "Decision: RECOMPRESS - Bitrates too high or wrong codecs")
-                "recompress"
-            }
+        val video = when {
+            !hasVideo -> "none"
+            videoCodecMatches && videoReason == null -> "copy"
+            else -> "encode"
+        }
+        val audio = when {
+            currentAudioCodec == "none" -> "none"
+            audioCodecMatches && audioReason == null -> "copy"
+            else -> "encode"
         }
+        
+        Log.d("VideoRecompression", "Decision: video=${video.uppercase()}, audio=${audio.uppercase()}")
+        return TrackActions(video, audio)
     }
     
-    private fun rewrapVideo(inputPath: String, outputPath: String) {
+    private fun rewrapVideo(
+        inputPath: String, openWriter: () -> SampleWriter, inputMp4: Mp4Info?, interleaveWindowUs: Long,
+        cancellation: CancellationSignal, progress: ProgressReporter?
+    ): MuxStats {
         val extractor = MediaExtractor()
-        var muxer: MediaMuxer? = null
+        val copier = InterleavedCopier(inputPath, extractor, bufferPool, interleaveWindowUs, cancellation)
+        var muxer: SampleWriter? = null
         var muxerStarted = false
+        val stats = MuxStats(progress)
         
         try {
             extractor.setDataSource(inputPath)
-            muxer = MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            muxer = openWriter()
             
             val trackCount = extractor.trackCount
             if (trackCount == 0) {
@@ -396,25 +1306,34 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
             // Add all tracks to muxer
             for (i in 0 until trackCount) {
                 val format = extractor.getTrackFormat(i)
-                val muxerTrackIndex = muxer.addTrack(format)
+                if (!muxer.canWrite(format)) {
+                    Log.w("VideoRecompression", "Skipping track $i (${format.getString(MediaFormat.KEY_MIME)}), not supported by the output")
+                    continue
+                }
+                val muxerTrackIndex = stats.addTrack(muxer, format, expectedSampleCount(inputMp4, extractor, i))
                 trackIndexMap[i] = muxerTrackIndex
             }
+            if (trackIndexMap.isEmpty()) {
+                throw IllegalStateException("No tracks can be written to the output")
+            }
             
             // Only start muxer after all tracks are added successfully
             muxer.start()
             muxerStarted = true
             
-            // Copy data from all tracks
-            for (i in 0 until trackCount) {
-                extractor.selectTrack(i)
-                copyTrack(extractor, muxer, trackIndexMap[i]!!)
-                extractor.unselectTrack(i)
+            // Copy data from all tracks, interleaved by presentation time
+            for ((i, muxerTrackIndex) in trackIndexMap) {
+                copier.addTrack(i, muxerTrackIndex)
             }
+            copier.copy(muxer, stats)
+            stats.checkSampleCounts()
+            return stats
             
         } catch (e: Exception) {
             Log.e("VideoRecompression", "Error in rewrapVideo: ${e.message}", e)
             throw e
         } finally {
+            copier.release()
             try {
                 extractor.release()
             } catch (e: Exception) {
@@ -438,35 +1357,30 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
         }
     }
     
-    private fun copyTrack(extractor: MediaExtractor, muxer: MediaMuxer, muxerTrackIndex: Int) {
-        val bufferInfo = MediaCodec.BufferInfo()
-        val buffer = ByteBuffer.allocate(1024 * 1024) // 1MB buffer
-        
-        while (true) {
-            val sampleSize = extractor.readSampleData(buffer, 0)
-            if (sampleSize < 0) break
-            
-            bufferInfo.presentationTimeUs = extractor.sampleTime
-            bufferInfo.flags = extractor.sampleFlags
-            bufferInfo.offset = 0
-            bufferInfo.size = sampleSize
-            
-            muxer.writeSampleData(muxerTrackIndex, buffer, bufferInfo)
-            extractor.advance()
-        }
-    }
-    
-    private fun transcodeVideo(inputPath: String, outputPath: String, settings: ReadableMap?) {
-        // For now, implement a basic transcoding using MediaMuxer and MediaCodec
-        // This is a simplified version - a full implementation would need more sophisticated codec handling
-        
+    private fun transcodeVideo(
+        inputPath: String, openWriter: () -> SampleWriter, settings: ReadableMap?, inputMp4: Mp4Info?,
+        originalInfo: ReadableMap, trackActions: TrackActions, interleaveWindowUs: Long,
+        cancellation: CancellationSignal, progress: ProgressReporter?, trim: TrimRange? = null,
+        checkpoint: ResumeJournal.Checkpoint? = null, sizeBudget: SizeBudget? = null
+    ): MuxStats {
         val extractor = MediaExtractor()
-        var muxer: MediaMuxer? = null
+        val trimStartUs = trim?.startUs ?: 0L
+        // A resumed job restarts its sources where the output stops; the writer drops the overlap
+        val startUs = trimStartUs + (checkpoint?.restartUs ?: 0L)
+        val videoStartUs = trimStartUs + (checkpoint?.resumeUs ?: 0L)
+        val endUs = trim?.endUs ?: Long.MAX_VALUE
+        val partial = trim != null || checkpoint != null
+        // The primary extractor feeds the video decoder; copied tracks get their own
+        val copier = InterleavedCopier(inputPath, null, bufferPool, interleaveWindowUs, cancellation, startUs, endUs)
+        var audioTranscoder: AudioTranscoder? = null
+        var muxer: SampleWriter? = null
         var muxerStarted = false
+        // Output timestamps start at zero, whatever the cut
+        val stats = MuxStats(progress, trimStartUs, checkpoint)
         
         try {
             extractor.setDataSource(inputPath)
-            muxer = MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            muxer = openWriter()
             
             // Find video and audio tracks
             var videoTrackIndex = -1
@@ -487,41 +1401,153 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
                 throw IllegalStateException("No video or audio tracks found in input file")
             }
             
-            // For simplified transcoding, we'll use MediaMuxer to copy tracks
-            // In a full implementation, you'd use MediaCodec for actual transcoding
-            val trackIndexMap = mutableMapOf<Int, Int>()
+            val encodeVideo = videoTrackIndex >= 0 && trackActions.video == "encode"
+            val encodeAudio = audioTrackIndex >= 0 && trackActions.audio == "encode"
+            val activeMuxer = muxer
             
-            if (videoTrackIndex >= 0) {
-                val videoFormat = extractor.getTrackFormat(videoTrackIndex)
-                // Apply video settings if provided
-                settings?.let { applyVideoSettings(videoFormat, it) }
-                val muxerVideoIndex = muxer.addTrack(videoFormat)
-                trackIndexMap[videoTrackIndex] = muxerVideoIndex
+            if (encodeAudio) {
+                val audioBitrate = SizeBudget.audioBitrateFor(settings)
+                audioTranscoder = AudioTranscoder(inputPath, audioTrackIndex, audioBitrate, cancellation, startUs, endUs).apply { start() }
+            }
+            var muxerAudioIndex = -1
+            val addAudioTrack: () -> Unit = {
+                if (encodeAudio) {
+                    muxerAudioIndex = stats.addTrack(activeMuxer, audioTranscoder!!.awaitOutputFormat())
+                } else if (audioTrackIndex >= 0) {
+                    val audioFormat = extractor.getTrackFormat(audioTrackIndex)
+                    val expectedSamples = if (partial) -1 else expectedSampleCount(inputMp4, extractor, audioTrackIndex)
+                    copier.addTrack(audioTrackIndex, stats.addTrack(activeMuxer, audioFormat, expectedSamples))
+                }
+            }
+            // Writes the stream-copied and audio-encoded tracks up to the given timestamp
+            val interleaveUntil: (Long) -> Unit = { limitUs ->
+                copier.copyUntil(activeMuxer, stats, limitUs)
+                audioTranscoder?.encodeUntil(limitUs) { buffer, info ->
+                    stats.writeSample(activeMuxer, muxerAudioIndex, buffer, info)
+                }
             }
             
-            if (audioTrackIndex >= 0) {
-                val audioFormat = extractor.getTrackFormat(audioTrackIndex)
-                // Apply audio settings if provided
-                settings?.let { applyAudioSettings(audioFormat, it) }
-                val muxerAudioIndex = muxer.addTrack(audioFormat)
-                trackIndexMap[audioTrackIndex] = muxerAudioIndex
+            if (!encodeVideo) {
+                // Video (if any) is stream-copied, so only the audio goes through a codec
+                var smartCutVideoIndex = -1
+                if (videoTrackIndex >= 0) {
+                    val videoFormat = extractor.getTrackFormat(videoTrackIndex)
+                    if (trim == null) {
+                        val expectedSamples = if (partial) -1 else expectedSampleCount(inputMp4, extractor, videoTrackIndex)
+                        copier.addTrack(videoTrackIndex, stats.addTrack(muxer, videoFormat, expectedSamples))
+                    } else {
+                        smartCutVideoIndex = stats.addTrack(muxer, videoFormat)
+                    }
+                    if (videoFormat.containsKey(MediaFormat.KEY_ROTATION)) {
+                        muxer.setOrientationHint(videoFormat.getInteger(MediaFormat.KEY_ROTATION))
+                    }
+                }
+                addAudioTrack()
+                muxer.start()
+                muxerStarted = true
+                
+                if (trim != null && smartCutVideoIndex >= 0) {
+                    SmartCut(
+                        inputPath, videoTrackIndex, extractor.getTrackFormat(videoTrackIndex), TrimRange(videoStartUs, endUs),
+                        originalInfo.getInt("videoBitrate"), originalInfo.getDouble("frameRate"), bufferPool, cancellation
+                    ).run { buffer, info ->
+                        stats.writeSample(activeMuxer, smartCutVideoIndex, buffer, info)
+                        interleaveUntil(info.presentationTimeUs + interleaveWindowUs)
+                    }
+                    interleaveUntil(Long.MAX_VALUE)
+                    stats.checkSampleCounts()
+                    return stats
+                }
+                
+                val stepUs = maxOf(interleaveWindowUs, MIN_INTERLEAVE_STEP_US)
+                var limitUs = startUs
+                while (!copier.isFinished || audioTranscoder?.isDone == false) {
+                    limitUs += stepUs
+                    interleaveUntil(limitUs)
+                }
+                stats.checkSampleCounts()
+                return stats
             }
             
-            // Only start muxer after all tracks are added successfully
-            muxer.start()
-            muxerStarted = true
+            val videoFormat = extractor.getTrackFormat(videoTrackIndex)
+            val sourceBitrate = originalInfo.getInt("videoBitrate")
+            val plannedConfig = VideoEncodeConfig.plan(
+                videoFormat, settings,
+                sourceBitrate,
+                originalInfo.getDouble("frameRate")
+            )
+            // A size target replaces the bitrate from videoBitrate or quality
+            val config = sizeBudget?.let { plannedConfig.copy(bitrate = it.encodeBitrate(sourceBitrate)) } ?: plannedConfig
+            val bitrateController = sizeBudget?.controller(
+                config.bitrate, if (sourceBitrate > 0) sourceBitrate else config.bitrate * 2
+            )
+            var videoTranscoder: VideoTranscoder? = null
+            if (config.rotation != 0) {
+                muxer.setOrientationHint(config.rotation)
+            }
             
-            // Copy tracks (simplified - doesn't actually transcode)
-            trackIndexMap.forEach { (extractorIndex, muxerIndex) ->
-                extractor.selectTrack(extractorIndex)
-                copyTrack(extractor, muxer, muxerIndex)
-                extractor.unselectTrack(extractorIndex)
+            // The muxer can only start once the encoder reports its output format
+            var muxerVideoIndex = -1
+            val onOutputFormat: (MediaFormat) -> Unit = { encodedFormat ->
+                muxerVideoIndex = stats.addTrack(activeMuxer, encodedFormat)
+                addAudioTrack()
+                activeMuxer.start()
+                muxerStarted = true
+            }
+            val onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit = { buffer, info ->
+                stats.writeSample(activeMuxer, muxerVideoIndex, buffer, info)
+                // Keep the audio interleaved with the encoded video
+                interleaveUntil(info.presentationTimeUs + interleaveWindowUs)
+                bitrateController?.update(info.presentationTimeUs - trimStartUs, stats.bytesWritten)?.let { bitrate ->
+                    videoTranscoder?.adjustBitrate(bitrate)
+                }
             }
             
+            // Segments cover the whole track, so a trimmed or resumed encode runs on one transcoder.
+            // Segments also encode out of order, which a size target cannot steer.
+            val parallel = settings?.hasKey("parallelTranscode") == true && settings.getBoolean("parallelTranscode") &&
+                !partial && bitrateController == null
+            val wantedSegments = if (parallel) {
+                SegmentedTranscoder.segmentCountFor(
+                    videoFormat.getString(MediaFormat.KEY_MIME) ?: "", config.mime,
+                    (originalInfo.getDouble("duration") * 1_000_000).toLong()
+                )
+            } else {
+                1
+            }
+            // This job holds one transcode slot; every further segment needs a free one, so parallel
+            // jobs never open more codecs than the scheduler allows
+            val extraSlots = if (wantedSegments > 1) scheduler.tryAcquire(JobKind.TRANSCODE, wantedSegments - 1) else 0
+            if (extraSlots > 0) {
+                try {
+                    SegmentedTranscoder(
+                        inputPath, videoTrackIndex, videoFormat, config, bufferPool, cancellation,
+                        reactApplicationContext.cacheDir, 1 + extraSlots, progress?.let { it::onPosition }
+                    ).run(onOutputFormat, onSample)
+                } finally {
+                    scheduler.release(JobKind.TRANSCODE, extraSlots)
+                }
+            } else {
+                extractor.selectTrack(videoTrackIndex)
+                if (videoStartUs > 0) extractor.seekTo(videoStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                val transcoder = VideoTranscoder(extractor, videoFormat, config, bufferPool, cancellation, videoStartUs, endUs)
+                videoTranscoder = transcoder
+                transcoder.run(onOutputFormat, onSample)
+            }
+            
+            if (!muxerStarted) {
+                throw IllegalStateException("Encoder produced no output")
+            }
+            interleaveUntil(Long.MAX_VALUE)
+            stats.checkSampleCounts()
+            return stats
+            
         } catch (e: Exception) {
             Log.e("VideoRecompression", "Error in transcodeVideo: ${e.message}", e)
             throw e
         } finally {
+            copier.release()
+            audioTranscoder?.release()
             try {
                 extractor.release()
             } catch (e: Exception) {
@@ -545,37 +1571,20 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
         }
     }
     
-    private fun applyVideoSettings(format: MediaFormat, settings: ReadableMap) {
-        // Apply video compression settings
-        if (settings.hasKey("maxWidth")) {
-            settings.getInt("maxWidth").takeIf { it > 0 }?.let { 
-                format.setInteger(MediaFormat.KEY_WIDTH, it) 
-            }
-        }
-        if (settings.hasKey("maxHeight")) {
-            settings.getInt("maxHeight").takeIf { it > 0 }?.let { 
-                format.setInteger(MediaFormat.KEY_HEIGHT, it) 
-            }
-        }
-        if (settings.hasKey("videoBitrate")) {
-            settings.getInt("videoBitrate").takeIf { it > 0 }?.let { 
-                format.setInteger(MediaFormat.KEY_BIT_RATE, it) 
-            }
-        }
-        if (settings.hasKey("frameRate")) {
-            settings.getInt("frameRate").takeIf { it > 0 }?.let { 
-                format.setInteger(MediaFormat.KEY_FRAME_RATE, it) 
-            }
-        }
-    }
-    
-    private fun applyAudioSettings(format: MediaFormat, settings: ReadableMap) {
-        // Apply audio compression settings
-        if (settings.hasKey("audioBitrate")) {
-            settings.getInt("audioBitrate").takeIf { it > 0 }?.let { 
-                format.setInteger(MediaFormat.KEY_BIT_RATE, it) 
-            }
+    private fun expectedSampleCount(mp4Info: Mp4Info?, extractor: MediaExtractor, trackIndex: Int): Int {
+        if (mp4Info == null) return -1
+        // Match the extractor track to the moov track of the same kind; extractors may skip
+        // unsupported tracks, so the indices themselves cannot be compared
+        val kind = { i: Int -> (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME) ?: "").substringBefore('/') }
+        val handler = when (kind(trackIndex)) {
+            "video" -> "vide"
+            "audio" -> "soun"
+            else -> return -1
         }
+        val sourceTracks = mp4Info.tracks.filter { it.handler == handler }
+        val extractorTracks = (0 until extractor.trackCount).filter { kind(it) == kind(trackIndex) }
+        if (sourceTracks.size != extractorTracks.size) return -1
+        return sourceTracks[extractorTracks.indexOf(trackIndex)].sampleCount
     }
     
     private fun getFileExtension(filePath: String): String {
@@ -585,6 +1594,8 @@ class VideoRecompressionModule(reactContext: ReactApplicationContext) : ReactCon
     @Deprecated("onCatalystInstanceDestroy is deprecated")
     override fun onCatalystInstanceDestroy() {
         super.onCatalystInstanceDestroy()
+        shuttingDown = true
+        runningJobs.values.forEach { it.cancel() }
         scope.cancel()
     }
 }
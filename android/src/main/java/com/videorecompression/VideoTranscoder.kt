@@ -0,0 +1,563 @@
+package com.videorecompression
+
+import android.annotation.TargetApi
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.Build
+import android.os.Bundle
+import android.os.CancellationSignal
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.OperationCanceledException
+import android.util.Log
+import com.facebook.react.bridge.ReadableMap
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.roundToInt
+
+data class VideoEncodeConfig(
+    val mime: String,
+    val width: Int,
+    val height: Int,
+    val bitrate: Int,
+    val frameRate: Int,
+    val rotation: Int,
+    val iFrameIntervalSeconds: Int = 2
+) {
+    companion object {
+        private const val DEFAULT_FRAME_RATE = 30
+
+        /**
+         * Plans the encoder output for [inputFormat]: fits the displayed frame into the
+         * [CompressionPolicy] limits keeping the aspect ratio, and never exceeds the source bitrate or
+         * frame rate. Without an explicit videoBitrate the bitrate follows `quality` as bits per
+         * pixel per frame.
+         */
+        fun plan(inputFormat: MediaFormat, settings: ReadableMap?, sourceBitrate: Int, sourceFrameRate: Double): VideoEncodeConfig {
+            val sourceWidth = inputFormat.getInteger(MediaFormat.KEY_WIDTH)
+            val sourceHeight = inputFormat.getInteger(MediaFormat.KEY_HEIGHT)
+            val rotation = if (inputFormat.containsKey("rotation-degrees")) inputFormat.getInteger("rotation-degrees") else 0
+
+            // Limits apply to the displayed orientation
+            val rotated = rotation == 90 || rotation == 270
+            val displayWidth = if (rotated) sourceHeight else sourceWidth
+            val displayHeight = if (rotated) sourceWidth else sourceHeight
+            val policy = CompressionPolicy.from(settings)
+            val scale = minOf(1.0, policy.maxWidth.toDouble() / displayWidth, policy.maxHeight.toDouble() / displayHeight)
+            val width = evenDimension(sourceWidth * scale)
+            val height = evenDimension(sourceHeight * scale)
+
+            val sourceFps = if (sourceFrameRate > 0) sourceFrameRate.roundToInt() else DEFAULT_FRAME_RATE
+            val frameRate = minOf(policy.maxFrameRate ?: sourceFps, sourceFps)
+
+            val quality = if (settings?.hasKey("quality") == true) settings.getDouble("quality").coerceIn(0.0, 1.0) else 0.8
+            val requestedBitrate = positiveInt(settings, "videoBitrate")
+                ?: (width.toLong() * height * frameRate * (0.04 + 0.08 * quality)).toInt()
+            val bitrate = if (sourceBitrate > 0) minOf(requestedBitrate, sourceBitrate) else requestedBitrate
+
+            val codec = if (settings?.hasKey("videoCodec") == true) settings.getString("videoCodec") else null
+            val mime = if (codec == "hevc" || codec == "h265") MediaFormat.MIMETYPE_VIDEO_HEVC else MediaFormat.MIMETYPE_VIDEO_AVC
+
+            return VideoEncodeConfig(mime, width, height, bitrate, frameRate, rotation)
+        }
+
+        private fun positiveInt(settings: ReadableMap?, key: String): Int? {
+            if (settings == null || !settings.hasKey(key)) return null
+            return settings.getInt(key).takeIf { it > 0 }
+        }
+
+        private fun evenDimension(value: Double): Int = maxOf(2, (value / 2).roundToInt() * 2)
+    }
+}
+
+/**
+ * Decodes one video track and re-encodes it Surface-to-Surface.
+ *
+ * The decoder renders into a SurfaceTexture whose frames are drawn with GL onto the encoder's input
+ * Surface at the target size, so scaling is done by the GPU and no YUV data crosses into Java.
+ * Frames are dropped ahead of the draw when the target frame rate is below the source rate.
+ *
+ * On API 23+ the codecs run in callback mode as separate stages: extractor + decoder on one
+ * HandlerThread, GL rendering on the calling thread (which owns the EGL context), the encoder on a
+ * second HandlerThread and muxing on a dedicated thread. The codec callbacks never block: a slow
+ * stage holds back the codec feeding it by keeping that codec's output buffers, so the codec stalls
+ * once all of them are taken and nobody busy-polls. Older devices use a single synchronous loop.
+ *
+ * Cancelling [cancellation] fails the pipeline, so every stage unwinds within one queue poll and
+ * the codecs are released before [run] throws.
+ *
+ * Only frames in [startUs, endUs) are encoded; the caller seeks the extractor to the sync sample
+ * before [startUs]. Input ends at the first sync sample at or after [endUs], which lets
+ * [SegmentedTranscoder] run one transcoder per GOP-aligned segment and [SmartCut] re-encode
+ * partial GOPs.
+ */
+class VideoTranscoder(
+    private val extractor: MediaExtractor,
+    private val inputFormat: MediaFormat,
+    private val config: VideoEncodeConfig,
+    private val bufferPool: BufferPool,
+    private val cancellation: CancellationSignal? = null,
+    private val startUs: Long = 0L,
+    private val endUs: Long = Long.MAX_VALUE
+) {
+
+    companion object {
+        private const val TIMEOUT_US = 10_000L
+        private const val QUEUE_POLL_MS = 100L
+
+        /** Encoded samples copied out ahead of the muxer; the shared [BufferPool] keeps this many per job. */
+        const val ENCODED_QUEUE_CAPACITY = 8
+    }
+
+    private class DecodedFrame(val index: Int, val presentationTimeUs: Long, val size: Int, val flags: Int)
+
+    /** Encoder output not yet handed to the muxer stage, in codec order. */
+    private sealed class EncoderOutput {
+        class Buffer(val index: Int, val info: MediaCodec.BufferInfo) : EncoderOutput()
+        class Format(val format: MediaFormat) : EncoderOutput()
+    }
+
+    private sealed class EncodedItem {
+        class Format(val format: MediaFormat) : EncodedItem()
+        class Sample(val buffer: ByteBuffer, val info: MediaCodec.BufferInfo) : EncodedItem()
+        object End : EncodedItem()
+    }
+
+    private var decoder: MediaCodec? = null
+    @Volatile private var encoder: MediaCodec? = null
+    private var inputSurface: InputSurface? = null
+    private var outputSurface: OutputSurface? = null
+
+    private val frameIntervalUs = 1_000_000L / config.frameRate
+    private var nextFrameUs = Long.MIN_VALUE
+
+    // Holds decoder output buffers until they are rendered, so it is bounded by the decoder's buffer count
+    private val decodedFrames = LinkedBlockingQueue<DecodedFrame>()
+    private val encodedItems = ArrayBlockingQueue<EncodedItem>(ENCODED_QUEUE_CAPACITY)
+    // Encoder thread only; buffers wait here unreleased while encodedItems is full
+    private val heldOutputs = ArrayDeque<EncoderOutput>()
+    // Set before the encoder thread checks for room, so the muxer stage knows to call it back
+    @Volatile private var encoderStalled = false
+    private var encoderHandler: Handler? = null
+    private val failure = AtomicReference<Throwable?>()
+    @Volatile private var stopped = false
+    // Decoder thread only; no input may be queued once end of stream has been
+    private var decoderInputDone = false
+
+    /**
+     * Runs the pipeline to completion. [onOutputFormat] is called once with the encoder output
+     * format before the first sample; [onSample] receives every encoded sample in output order.
+     * Both are always invoked from a single thread. The extractor must have the video track selected
+     * and is not touched by the caller until this returns.
+     */
+    fun run(onOutputFormat: (MediaFormat) -> Unit, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            runAsync(onOutputFormat, onSample)
+        } else {
+            try {
+                setUp(null, null, null, null)
+                loop(onOutputFormat, onSample)
+            } finally {
+                release()
+            }
+        }
+    }
+
+    /**
+     * Changes the encoder bitrate while [run] is in progress; frames already queued keep the old
+     * rate. Safe to call from the [run] callbacks.
+     */
+    fun adjustBitrate(bitrate: Int) {
+        val encoder = encoder ?: return
+        try {
+            encoder.setParameters(Bundle().apply { putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate) })
+        } catch (e: IllegalStateException) {
+            // The encoder is stopping; the remaining frames are already encoded
+            Log.w("VideoRecompression", "Could not change bitrate: ${e.message}")
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private fun runAsync(onOutputFormat: (MediaFormat) -> Unit, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val decoderThread = HandlerThread("VideoRecompression-decoder").apply { start() }
+        val encoderThread = HandlerThread("VideoRecompression-encoder").apply { start() }
+        val muxerThread = Thread({ drainEncoded(onOutputFormat, onSample) }, "VideoRecompression-muxer")
+
+        try {
+            cancellation?.setOnCancelListener { fail(OperationCanceledException()) }
+            encoderHandler = Handler(encoderThread.looper)
+            setUp(encoderCallback(), encoderHandler, decoderCallback(), Handler(decoderThread.looper))
+            muxerThread.start()
+            renderFrames()
+            muxerThread.join()
+            throwIfFailed()
+        } finally {
+            cancellation?.setOnCancelListener(null)
+            stopped = true
+            if (muxerThread.isAlive) {
+                muxerThread.interrupt()
+                muxerThread.join()
+            }
+            release()
+            decoderThread.quitSafely()
+            encoderThread.quitSafely()
+            drainQueues()
+        }
+    }
+
+    private fun setUp(
+        encoderCallback: MediaCodec.Callback?, encoderHandler: Handler?,
+        decoderCallback: MediaCodec.Callback?, decoderHandler: Handler?
+    ) {
+        val encoder = CodecCatalog.createEncoder(config.mime)
+        this.encoder = encoder
+        val videoCapabilities = CodecCatalog.capabilitiesFor(encoder.codecInfo, config.mime).videoCapabilities
+        val width = align(config.width, videoCapabilities.widthAlignment)
+        val height = align(config.height, videoCapabilities.heightAlignment)
+
+        val outputFormat = MediaFormat.createVideoFormat(config.mime, width, height).apply {
+            setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+            setInteger(MediaFormat.KEY_BIT_RATE, config.bitrate)
+            setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate)
+            setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.iFrameIntervalSeconds)
+        }
+        Log.d("VideoRecompression", "Encoder: ${config.mime} ${width}x$height @ ${config.bitrate} bps, ${config.frameRate} fps")
+        if (encoderCallback != null) setCallback(encoder, encoderCallback, encoderHandler)
+        encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+
+        val inputSurface = InputSurface(encoder.createInputSurface())
+        this.inputSurface = inputSurface
+        inputSurface.makeCurrent()
+        encoder.start()
+
+        // Rotation is carried by the muxer orientation hint; the decoder must not rotate frames
+        val decoderFormat = MediaFormat().apply {
+            inputFormat.getString(MediaFormat.KEY_MIME)?.let { setString(MediaFormat.KEY_MIME, it) }
+        }
+        copyDecoderKeys(inputFormat, decoderFormat)
+
+        val outputSurface = OutputSurface()
+        this.outputSurface = outputSurface
+        val decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME)!!)
+        this.decoder = decoder
+        if (decoderCallback != null) setCallback(decoder, decoderCallback, decoderHandler)
+        decoder.configure(decoderFormat, outputSurface.surface, null, 0)
+        decoder.start()
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private fun setCallback(codec: MediaCodec, callback: MediaCodec.Callback, handler: Handler?) {
+        codec.setCallback(callback, handler)
+    }
+
+    /** Extractor + decoder stage; runs on the decoder HandlerThread. */
+    private fun decoderCallback() = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+            if (stopped || decoderInputDone) return
+            try {
+                val buffer = codec.getInputBuffer(index) ?: return
+                val sampleSize = readSample(buffer)
+                if (sampleSize < 0) {
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                    decoderInputDone = true
+                } else {
+                    codec.queueInputBuffer(index, 0, sampleSize, extractor.sampleTime, 0)
+                    extractor.advance()
+                }
+            } catch (e: Exception) {
+                fail(e)
+            }
+        }
+
+        override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            // The buffer stays with the render stage until drawn; a decoder out of buffers stops decoding
+            decodedFrames.add(DecodedFrame(index, info.presentationTimeUs, info.size, info.flags))
+        }
+
+        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+            fail(e)
+        }
+
+        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+            // Frames reach the encoder through the Surface; the decoder format does not matter
+        }
+    }
+
+    /**
+     * Encoder stage; copies encoded samples out so codec buffers return to the encoder quickly.
+     * When the muxer stage is [ENCODED_QUEUE_CAPACITY] samples behind, output buffers are kept
+     * instead, and the muxer stage calls [forwardOutputs] again as it makes room.
+     */
+    private fun encoderCallback() = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+            // Input arrives through the Surface
+        }
+
+        override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            val held = MediaCodec.BufferInfo().apply { set(info.offset, info.size, info.presentationTimeUs, info.flags) }
+            heldOutputs.addLast(EncoderOutput.Buffer(index, held))
+            forwardOutputs(codec)
+        }
+
+        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+            fail(e)
+        }
+
+        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+            heldOutputs.addLast(EncoderOutput.Format(format))
+            forwardOutputs(codec)
+        }
+    }
+
+    /** Moves held encoder output to the muxer stage while it has room; runs on the encoder thread. */
+    private fun forwardOutputs(codec: MediaCodec) {
+        try {
+            while (!stopped) {
+                val output = heldOutputs.firstOrNull() ?: break
+                encoderStalled = true
+                when (output) {
+                    is EncoderOutput.Format -> {
+                        if (!encodedItems.offer(EncodedItem.Format(output.format))) return
+                    }
+                    is EncoderOutput.Buffer -> {
+                        val info = output.info
+                        // Codec config already travels in the output format (csd-0/csd-1)
+                        val isConfig = info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0
+                        val isSample = !isConfig && info.size > 0
+                        val isEnd = info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0
+                        // Only this thread adds items, so the room found here cannot shrink
+                        if (encodedItems.remainingCapacity() < (if (isSample) 1 else 0) + (if (isEnd) 1 else 0)) return
+                        if (isSample) {
+                            val source = codec.getOutputBuffer(output.index)!!
+                            source.position(info.offset)
+                            source.limit(info.offset + info.size)
+                            val copy = bufferPool.acquire(info.size)
+                            copy.put(source)
+                            copy.flip()
+                            val copyInfo = MediaCodec.BufferInfo().apply {
+                                set(0, info.size, info.presentationTimeUs, info.flags)
+                            }
+                            encodedItems.add(EncodedItem.Sample(copy, copyInfo))
+                        }
+                        codec.releaseOutputBuffer(output.index, false)
+                        if (isEnd) encodedItems.add(EncodedItem.End)
+                    }
+                }
+                heldOutputs.removeFirst()
+            }
+            encoderStalled = false
+        } catch (e: Exception) {
+            fail(e)
+        }
+    }
+
+    /** GL stage; runs on the calling thread, which owns the EGL context. */
+    private fun renderFrames() {
+        val decoder = decoder!!
+        val encoder = encoder!!
+        val inputSurface = inputSurface!!
+        val outputSurface = outputSurface!!
+
+        while (true) {
+            val frame = decodedFrames.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS)
+            throwIfFailed()
+            if (frame == null) continue
+
+            val render = frame.size > 0 && keepFrame(frame.presentationTimeUs)
+            decoder.releaseOutputBuffer(frame.index, render)
+            if (render) {
+                outputSurface.awaitNewImage()
+                outputSurface.drawImage()
+                inputSurface.setPresentationTime(frame.presentationTimeUs * 1000)
+                inputSurface.swapBuffers()
+            }
+            if (frame.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                encoder.signalEndOfInputStream()
+                return
+            }
+        }
+    }
+
+    /** Muxer stage; runs on its own thread until the encoder signals end of stream. */
+    private fun drainEncoded(onOutputFormat: (MediaFormat) -> Unit, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        try {
+            while (true) {
+                val item = encodedItems.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS)
+                if (item == null) {
+                    if (stopped) return
+                    continue
+                }
+                if (encoderStalled) {
+                    encoder?.let { codec -> encoderHandler?.post { forwardOutputs(codec) } }
+                }
+                when (item) {
+                    is EncodedItem.Format -> onOutputFormat(item.format)
+                    is EncodedItem.Sample -> try {
+                        onSample(item.buffer, item.info)
+                    } finally {
+                        bufferPool.release(item.buffer)
+                    }
+                    EncodedItem.End -> return
+                }
+            }
+        } catch (e: InterruptedException) {
+            // Stopped by the render stage after a failure
+        } catch (e: Throwable) {
+            fail(e)
+        }
+    }
+
+    private fun fail(e: Throwable) {
+        failure.compareAndSet(null, e)
+        stopped = true
+    }
+
+    private fun throwIfFailed() {
+        val error = failure.get() ?: return
+        throw if (error is Exception) error else IllegalStateException("Transcoding pipeline failed", error)
+    }
+
+    private fun drainQueues() {
+        decodedFrames.clear()
+        while (true) {
+            val item = encodedItems.poll() ?: break
+            if (item is EncodedItem.Sample) bufferPool.release(item.buffer)
+        }
+    }
+
+    /** Single-threaded fallback for devices without handler-based codec callbacks. */
+    private fun loop(onOutputFormat: (MediaFormat) -> Unit, onSample: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val decoder = decoder!!
+        val encoder = encoder!!
+        val inputSurface = inputSurface!!
+        val outputSurface = outputSurface!!
+        val decoderInfo = MediaCodec.BufferInfo()
+        val encoderInfo = MediaCodec.BufferInfo()
+
+        var inputDone = false
+        var decoderDone = false
+        var encoderDone = false
+
+        while (!encoderDone) {
+            cancellation?.throwIfCanceled()
+
+            // Feed the decoder
+            if (!inputDone) {
+                val inputIndex = decoder.dequeueInputBuffer(TIMEOUT_US)
+                if (inputIndex >= 0) {
+                    val buffer = decoder.getInputBuffer(inputIndex)!!
+                    val sampleSize = readSample(buffer)
+                    if (sampleSize < 0) {
+                        decoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                        inputDone = true
+                    } else {
+                        decoder.queueInputBuffer(inputIndex, 0, sampleSize, extractor.sampleTime, 0)
+                        extractor.advance()
+                    }
+                }
+            }
+
+            // Render decoded frames onto the encoder surface
+            if (!decoderDone) {
+                val outputIndex = decoder.dequeueOutputBuffer(decoderInfo, TIMEOUT_US)
+                if (outputIndex >= 0) {
+                    val render = decoderInfo.size > 0 && keepFrame(decoderInfo.presentationTimeUs)
+                    decoder.releaseOutputBuffer(outputIndex, render)
+                    if (render) {
+                        outputSurface.awaitNewImage()
+                        outputSurface.drawImage()
+                        inputSurface.setPresentationTime(decoderInfo.presentationTimeUs * 1000)
+                        inputSurface.swapBuffers()
+                    }
+                    if (decoderInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                        encoder.signalEndOfInputStream()
+                        decoderDone = true
+                    }
+                }
+            }
+
+            // Drain everything the encoder has ready
+            while (true) {
+                val outputIndex = encoder.dequeueOutputBuffer(encoderInfo, if (decoderDone) TIMEOUT_US else 0)
+                if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) break
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    onOutputFormat(encoder.outputFormat)
+                    continue
+                }
+                if (outputIndex < 0) continue
+
+                val buffer = encoder.getOutputBuffer(outputIndex)!!
+                if (encoderInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+                    // Codec config already travels in the output format (csd-0/csd-1)
+                    encoderInfo.size = 0
+                }
+                if (encoderInfo.size > 0) {
+                    onSample(buffer, encoderInfo)
+                }
+                encoder.releaseOutputBuffer(outputIndex, false)
+                if (encoderInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                    encoderDone = true
+                    break
+                }
+            }
+        }
+    }
+
+    /** Reads the next sample, or returns -1 at the end of the track or of the segment. */
+    private fun readSample(buffer: ByteBuffer): Int {
+        val atSegmentEnd = extractor.sampleTime >= endUs &&
+            extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+        return if (atSegmentEnd) -1 else extractor.readSampleData(buffer, 0)
+    }
+
+    private fun keepFrame(presentationTimeUs: Long): Boolean {
+        if (presentationTimeUs < startUs || presentationTimeUs >= endUs) return false
+        if (nextFrameUs == Long.MIN_VALUE || presentationTimeUs >= nextFrameUs - frameIntervalUs / 4) {
+            nextFrameUs = maxOf(presentationTimeUs, nextFrameUs) + frameIntervalUs
+            return true
+        }
+        return false
+    }
+
+    private fun copyDecoderKeys(source: MediaFormat, target: MediaFormat) {
+        target.setInteger(MediaFormat.KEY_WIDTH, source.getInteger(MediaFormat.KEY_WIDTH))
+        target.setInteger(MediaFormat.KEY_HEIGHT, source.getInteger(MediaFormat.KEY_HEIGHT))
+        for (key in listOf("csd-0", "csd-1", "csd-2")) {
+            if (source.containsKey(key)) target.setByteBuffer(key, source.getByteBuffer(key))
+        }
+        if (source.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            target.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, source.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE))
+        }
+    }
+
+    private fun align(value: Int, alignment: Int): Int {
+        if (alignment <= 1) return value
+        return maxOf(alignment, (value + alignment / 2) / alignment * alignment)
+    }
+
+    private fun release() {
+        try {
+            decoder?.stop()
+        } catch (e: Exception) {
+            Log.w("VideoRecompression", "Error stopping decoder: ${e.message}")
+        }
+        decoder?.release()
+        outputSurface?.release()
+        try {
+            encoder?.stop()
+        } catch (e: Exception) {
+            Log.w("VideoRecompression", "Error stopping encoder: ${e.message}")
+        }
+        encoder?.release()
+        inputSurface?.release()
+        decoder = null
+        encoder = null
+        outputSurface = null
+        inputSurface = null
+    }
+}
@@ -234,6 +234,61 @@ RCT_EXPORT_METHOD(processVideo:(NSString *)inputPath
     });
 }
 
+RCT_EXPORT_METHOD(cancelJob:(NSString *)jobId
+                 resolver:(RCTPromiseResolveBlock)resolve
+                 rejecter:(RCTPromiseRejectBlock)reject)
+{
+    // Export sessions are not tracked by job id yet, so there is never a job to cancel
+    RCTLogInfo(@"cancelJob is not supported on iOS: %@", jobId);
+    resolve(@NO);
+}
+
+RCT_EXPORT_METHOD(processVideos:(NSArray *)jobs
+                  settings:(NSDictionary *)settings
+                  resolver:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    reject(@"UNSUPPORTED", @"processVideos is not supported on iOS yet", nil);
+}
+
+RCT_EXPORT_METHOD(getJobResult:(NSString *)jobId
+                  resolver:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    reject(@"UNSUPPORTED", @"getJobResult is not supported on iOS yet", nil);
+}
+
+RCT_EXPORT_METHOD(getBufferPoolStats:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    reject(@"UNSUPPORTED", @"getBufferPoolStats is not supported on iOS yet", nil);
+}
+
+RCT_EXPORT_METHOD(estimateProcessing:(NSString *)filePath
+                  settings:(NSDictionary *)settings
+                  resolver:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    reject(@"UNSUPPORTED", @"estimateProcessing is not supported on iOS yet", nil);
+}
+
+RCT_EXPORT_METHOD(extractThumbnails:(NSString *)filePath
+                  options:(NSDictionary *)options
+                  resolver:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    reject(@"UNSUPPORTED", @"extractThumbnails is not supported on iOS yet", nil);
+}
+
+// Required by NativeEventEmitter; progress events are not emitted on iOS yet
+RCT_EXPORT_METHOD(addListener:(NSString *)eventName)
+{
+}
+
+RCT_EXPORT_METHOD(removeListeners:(double)count)
+{
+}
+
 - (void)analyzeAssetAndProcessWithAsset:(AVURLAsset *)asset
                               inputPath:(NSString *)inputPath
                              outputPath:(NSString *)outputPath
@@ -1,7 +1,17 @@
+import { NativeModules } from 'react-native';
 import VideoRecompression from '../index';
 
+// Listeners registered through NativeEventEmitter, so tests can emit events
+const mockProgressListeners: Array<(event: unknown) => void> = [];
+
 // Mock react-native
 jest.mock('react-native', () => ({
+  NativeEventEmitter: jest.fn(() => ({
+    addListener: jest.fn((_eventType, listener) => {
+      mockProgressListeners.push(listener);
+      return { remove: jest.fn() };
+    }),
+  })),
   NativeModules: {
     VideoRecompression: {
       init: jest.fn(() =>
@@ -34,6 +44,25 @@ jest.mock('react-native', () => ({
           processingTime: 5000,
         })
       ),
+      cancelJob: jest.fn(() => Promise.resolve(true)),
+      getJobResult: jest.fn((jobId: string) =>
+        Promise.resolve(jobId === 'share-1' ? { jobId, status: 'pending' } : null)
+      ),
+      processVideos: jest.fn(() => Promise.resolve([])),
+      getBufferPoolStats: jest.fn(() =>
+        Promise.resolve({ allocations: 4, reuses: 120 })
+      ),
+      extractThumbnails: jest.fn(() => Promise.resolve([])),
+      estimateProcessing: jest.fn(() =>
+        Promise.resolve({
+          action: 'recompress',
+          trackActions: { video: 'encode', audio: 'copy' },
+          predictedSize: 8000000,
+          predictedTime: 12000,
+          calibrationSamples: 3,
+          originalInfo: {},
+        })
+      ),
       convert: jest.fn(() => Promise.resolve('/path/to/output.mp4')),
     },
   },
@@ -122,6 +151,201 @@ describe('VideoRecompression', () => {
     });
   });
 
+  describe('cancelJob', () => {
+    it('should pass the job id of a running job to the native module', async () => {
+      const job = VideoRecompression.processVideo(
+        '/path/to/input.mov',
+        '/path/to/output.mp4',
+        { jobId: 'share-1' }
+      );
+
+      expect(job.jobId).toBe('share-1');
+      await expect(VideoRecompression.cancelJob(job.jobId)).resolves.toBe(
+        true
+      );
+      await job;
+    });
+
+    it('should generate a job id when none is given', () => {
+      const job = VideoRecompression.processVideo(
+        '/path/to/input.mov',
+        '/path/to/output.mp4'
+      );
+
+      expect(job.jobId).toEqual(expect.any(String));
+      expect(job.jobId.length).toBeGreaterThan(0);
+    });
+  });
+
+  describe('getJobResult', () => {
+    it('should resolve the status of a known job', async () => {
+      await expect(VideoRecompression.getJobResult('share-1')).resolves.toEqual({
+        jobId: 'share-1',
+        status: 'pending',
+      });
+      expect(NativeModules.VideoRecompression.getJobResult).toHaveBeenCalledWith(
+        'share-1'
+      );
+    });
+
+    it('should resolve null for an unknown job', async () => {
+      await expect(VideoRecompression.getJobResult('missing')).resolves.toBeNull();
+    });
+  });
+
+  describe('estimateProcessing', () => {
+    it('should pass the settings and resolve the estimate', async () => {
+      const estimate = await VideoRecompression.estimateProcessing(
+        '/path/to/video.mp4',
+        { quality: 0.6 }
+      );
+
+      expect(estimate.action).toBe('recompress');
+      expect(estimate.predictedTime).toBe(12000);
+      expect(
+        NativeModules.VideoRecompression.estimateProcessing
+      ).toHaveBeenCalledWith('/path/to/video.mp4', { quality: 0.6 });
+    });
+  });
+
+  describe('getBufferPoolStats', () => {
+    it('should resolve the pool counters', async () => {
+      await expect(VideoRecompression.getBufferPoolStats()).resolves.toEqual({
+        allocations: 4,
+        reuses: 120,
+      });
+    });
+  });
+
+  describe('extractThumbnails', () => {
+    it('should pass a count with the options', async () => {
+      await VideoRecompression.extractThumbnails('/path/to/video.mp4', 12, {
+        maxSize: 160,
+      });
+
+      expect(
+        NativeModules.VideoRecompression.extractThumbnails
+      ).toHaveBeenCalledWith('/path/to/video.mp4', {
+        maxSize: 160,
+        count: 12,
+        jobId: expect.any(String),
+      });
+    });
+
+    it('should pass explicit timestamps', async () => {
+      await VideoRecompression.extractThumbnails('/path/to/video.mp4', [0, 2.5]);
+
+      expect(
+        NativeModules.VideoRecompression.extractThumbnails
+      ).toHaveBeenCalledWith('/path/to/video.mp4', {
+        timestamps: [0, 2.5],
+        jobId: expect.any(String),
+      });
+    });
+
+    it('should expose the job id for cancelJob', async () => {
+      const job = VideoRecompression.extractThumbnails('/path/to/video.mp4', 4, {
+        jobId: 'thumbs-1',
+      });
+
+      expect(job.jobId).toBe('thumbs-1');
+      await job;
+    });
+  });
+
+  describe('progress', () => {
+    it('should forward progress events of its own job only', async () => {
+      const onProgress = jest.fn();
+      const job = VideoRecompression.processVideo(
+        '/path/to/input.mov',
+        '/path/to/output.mp4',
+        { jobId: 'progress-1' },
+        onProgress
+      );
+
+      const emit = mockProgressListeners[mockProgressListeners.length - 1];
+      const event = {
+        jobId: 'progress-1',
+        progress: 0.25,
+        bytesPerSecond: 1000000,
+        framesPerSecond: 60,
+        etaSeconds: 3,
+        bytesWritten: 1000000,
+      };
+      emit({ ...event, jobId: 'other-job', progress: 0.5 });
+      emit(event);
+      await job;
+
+      expect(NativeModules.VideoRecompression.processVideo).toHaveBeenCalledWith(
+        '/path/to/input.mov',
+        '/path/to/output.mp4',
+        expect.objectContaining({ jobId: 'progress-1', reportProgress: true })
+      );
+      expect(onProgress).toHaveBeenCalledTimes(1);
+      expect(onProgress).toHaveBeenCalledWith(0.25, event);
+    });
+  });
+
+  describe('processVideos', () => {
+    it('should forward item events of its own batch only', async () => {
+      const onItem = jest.fn();
+      const jobs = [
+        { inputPath: '/path/to/a.mov', outputPath: '/path/to/a.mp4' },
+      ];
+      const batch = VideoRecompression.processVideos(
+        jobs,
+        { batchId: 'batch-1' },
+        onItem
+      );
+
+      const emit = mockProgressListeners[mockProgressListeners.length - 1];
+      const item = {
+        batchId: 'batch-1',
+        index: 0,
+        jobId: 'batch-1-0',
+        inputPath: '/path/to/a.mov',
+        status: 'completed',
+      };
+      emit({ ...item, batchId: 'other-batch' });
+      emit(item);
+      await batch;
+
+      expect(batch.batchId).toBe('batch-1');
+      expect(
+        NativeModules.VideoRecompression.processVideos
+      ).toHaveBeenCalledWith(jobs, { batchId: 'batch-1' });
+      expect(onItem).toHaveBeenCalledTimes(1);
+      expect(onItem).toHaveBeenCalledWith(item);
+    });
+  });
+
+  describe('addFragmentListener', () => {
+    it('should forward fragments of its own job only', () => {
+      const listener = jest.fn();
+      const subscription = VideoRecompression.addFragmentListener(
+        'fragment-1',
+        listener
+      );
+
+      const emit = mockProgressListeners[mockProgressListeners.length - 1];
+      const fragment = {
+        jobId: 'fragment-1',
+        path: '/path/to/output.mp4',
+        sequenceNumber: 0,
+        offset: 0,
+        length: 1200,
+        startTime: 0,
+        duration: 0,
+      };
+      emit({ ...fragment, jobId: 'other-job' });
+      emit(fragment);
+
+      expect(listener).toHaveBeenCalledTimes(1);
+      expect(listener).toHaveBeenCalledWith(fragment);
+      expect(typeof subscription.remove).toBe('function');
+    });
+  });
+
   describe('error handling', () => {
     it('should handle file not found errors', async () => {
       // Override the mock to reject for this test
@@ -1,4 +1,4 @@
-import { NativeModules, Platform } from 'react-native';
+import { NativeEventEmitter, NativeModules, Platform } from 'react-native';
 
 const LINKING_ERROR =
   `The package 'react-native-video-recompression' doesn't seem to be linked. Make sure: \n\n` +
@@ -31,23 +31,32 @@ export interface VideoInfo {
   width: number;
   /** Video height in pixels */
   height: number;
+  /** Clockwise display rotation in degrees (0, 90, 180, 270) */
+  rotation?: number;
   /** Duration in seconds */
   duration: number;
   /** Video bitrate in bits per second */
   videoBitrate: number;
   /** Audio bitrate in bits per second */
   audioBitrate: number;
-  /** Frame rate */
+  /** Average frame rate */
   frameRate: number;
+  /** Peak frame rate (shortest frame interval), equals frameRate for constant frame rate video */
+  peakFrameRate?: number;
   /** File size in bytes */
   fileSize: number;
+  /**
+   * Sparse content fingerprint over size, mtime, moov and sampled mdat windows (Android).
+   * Misses same-size in-place edits of unsampled media bytes that also keep the mtime.
+   */
+  fingerprint?: string;
 }
 
 export interface CompressionSettings {
   /** Target video codec (h264, hevc) */
   videoCodec?: 'h264' | 'hevc';
-  /** Target audio codec (aac, mp3) */
-  audioCodec?: 'aac' | 'mp3';
+  /** Target audio codec; only AAC is supported, anything else rejects with 'INVALID_SETTINGS' (Android) */
+  audioCodec?: 'aac';
   /** Target video bitrate in bits per second */
   videoBitrate?: number;
   /** Target audio bitrate in bits per second */
@@ -60,23 +69,239 @@ export interface CompressionSettings {
   frameRate?: number;
   /** Compression quality (0.0 to 1.0) */
   quality?: number;
-  /** Whether to optimize for network use */
+  /** Whether to optimize for network use; on Android moves moov to the front of the file (default true) */
   optimizeForNetwork?: boolean;
+  /** Allow passthrough to return the input path itself instead of creating a file at outputPath */
+  allowInPlace?: boolean;
+  /** Identifier for cancelJob; generated when omitted and returned on the promise as `jobId` */
+  jobId?: string;
+  /** Minimum time between progress events in milliseconds (Android, default 100) */
+  progressIntervalMs?: number;
+  /** Minimum progress change between progress events, 0.0 to 1.0 (Android, default 0.01) */
+  progressStep?: number;
+  /** Scheduling priority when several jobs are queued (Android, default 'normal') */
+  priority?: 'high' | 'normal' | 'low';
+  /** Re-encode video above this many bits per pixel per frame (Android, default 0.25) */
+  bitsPerPixelThreshold?: number;
+  /** Re-encode audio above this bitrate in bits per second (Android, default 192000) */
+  audioBitrateThreshold?: number;
+  /** Maximum duration in milliseconds of a single-track run when interleaving tracks (Android, default 500) */
+  interleaveWindowMs?: number;
+  /**
+   * Split long videos at keyframes and encode the segments on parallel codec instances (Android).
+   * Each segment uses its own decoder and encoder, so prefer it when one long video is processed at a time.
+   */
+  parallelTranscode?: boolean;
+  /** Write fragmented MP4 and announce each finished fragment (Android, H.264/AAC only) */
+  fragmentedOutput?: boolean;
+  /** Minimum fragment duration in milliseconds; fragments start on keyframes (Android, default 2000) */
+  fragmentDurationMs?: number;
+  /**
+   * Journal each fragment so that running the same job again after the process was killed
+   * continues after the last written fragment (Android, fragmented output only, default true)
+   */
+  resumable?: boolean;
+  /** Record the job in the on-disk queue so it runs again after an app restart, up to 3 runs in all (Android, default false) */
+  durable?: boolean;
+  /** Start of the part to keep, in seconds (Android) */
+  startTime?: number;
+  /** End of the part to keep, in seconds (Android, default end of video) */
+  endTime?: number;
+  /** Upper bound for the output size in bytes; video is encoded at the bitrate that fits, corrected while encoding (Android) */
+  targetFileSize?: number;
+  /**
+   * Reuse the output of an earlier identical job from the on-disk result cache, and share one run
+   * between identical jobs in flight (Android, default false; fragmented output is never cached)
+   */
+  useCache?: boolean;
+  /** Input fingerprint for the result cache key: sampled (default) or a full SHA-256 of the file (Android) */
+  fingerprint?: 'sparse' | 'full';
 }
 
 export interface CompressionResult {
-  /** Output file path */
+  /** Identifier of the job that produced this result (Android) */
+  jobId?: string;
+  /** Output file path (the input path when an in-place passthrough was allowed) */
   outputPath: string;
   /** Action taken (passthrough, rewrap, recompress) */
   action: 'passthrough' | 'rewrap' | 'recompress';
+  /** Output time in seconds where this run continued an interrupted one (Android, resumed jobs only) */
+  resumedFrom?: number;
+  /** Whether the output was restored from the result cache instead of being processed (Android) */
+  cached?: boolean;
+  /** Sizes in bytes for a targetFileSize job: the target, the size predicted before encoding and the output size (Android) */
+  targetSize?: {
+    target: number;
+    predicted: number;
+    actual: number;
+    /** Whether the output is no larger than the target */
+    met: boolean;
+  };
+  /** What happened to each track: stream-copied, re-encoded, or not present (Android) */
+  trackActions?: {
+    video: 'copy' | 'encode' | 'none';
+    audio: 'copy' | 'encode' | 'none';
+  };
+  /** How a passthrough result was delivered (Android) */
+  passthroughStrategy?: 'in_place' | 'hardlink' | 'transfer';
   /** Original file info */
   originalInfo: VideoInfo;
   /** Final file info */
   finalInfo: VideoInfo;
   /** Time taken in milliseconds */
   processingTime: number;
+  /** Integrity data computed while writing (absent for passthrough) */
+  integrity?: {
+    /** CRC32 of all written sample payloads, as 8 hex digits */
+    crc32: string;
+    /** Total number of samples written across all tracks */
+    sampleCount: number;
+    /** Tracks that wrote a different number of samples than the source has; empty when none did */
+    sampleCountMismatches: string[];
+  };
+}
+
+export interface ProgressEvent {
+  /** Job the event belongs to */
+  jobId: string;
+  /** Fraction of the source duration written, 0.0 to 1.0 */
+  progress: number;
+  /** Output bytes written per second since the previous event */
+  bytesPerSecond: number;
+  /** Video frames written per second since the previous event */
+  framesPerSecond: number;
+  /** Estimated seconds remaining, or -1 when unknown */
+  etaSeconds: number;
+  /** Total sample bytes written so far */
+  bytesWritten: number;
+}
+
+/** A finished byte range of a fragmented output file; it will not change again */
+export interface FragmentEvent {
+  /** Job the fragment belongs to */
+  jobId: string;
+  /** Output file containing the fragment */
+  path: string;
+  /** 0 for the init segment (ftyp + moov), then 1, 2, ... for each moof/mdat pair */
+  sequenceNumber: number;
+  /** Byte offset of the fragment in the file */
+  offset: number;
+  /** Length of the fragment in bytes */
+  length: number;
+  /** Media time of the first sample in seconds */
+  startTime: number;
+  /** Media duration of the fragment in seconds */
+  duration: number;
+}
+
+export interface JobStatus {
+  /** Identifier of the job */
+  jobId: string;
+  /** Queued or interrupted, running now, or finished with an outcome */
+  status: 'pending' | 'running' | 'completed' | 'failed' | 'cancelled';
+  /** Result of a completed job */
+  result?: CompressionResult;
+  /** Rejection code of a failed or cancelled job */
+  errorCode?: string;
+  /** Error message of a failed or cancelled job */
+  error?: string;
+}
+
+export interface BufferPoolStats {
+  /** Direct buffers allocated since the module was created */
+  allocations: number;
+  /** Sample copies served from an idle pooled buffer instead of a new allocation */
+  reuses: number;
+}
+
+export interface ProcessingEstimate {
+  /** Action processVideo would take with the same settings */
+  action: 'passthrough' | 'rewrap' | 'recompress';
+  /** What would happen to each track */
+  trackActions: {
+    video: 'copy' | 'encode' | 'none';
+    audio: 'copy' | 'encode' | 'none';
+  };
+  /** Predicted output size in bytes */
+  predictedSize: number;
+  /** Predicted processing time in milliseconds, excluding time spent queued behind other jobs */
+  predictedTime: number;
+  /** Finished jobs on this device the time prediction learned from; 0 means built-in defaults */
+  calibrationSamples: number;
+  /** Analysis of the input */
+  originalInfo: VideoInfo;
 }
 
+export interface ThumbnailOptions {
+  /** Longest side of the images in pixels (default 320) */
+  maxSize?: number;
+  /** Image format (default 'jpeg') */
+  format?: 'jpeg' | 'webp';
+  /** Compression quality, 0 to 100 (default 80) */
+  quality?: number;
+  /** Identifier for cancelJob; generated when omitted and returned on the promise as `jobId` */
+  jobId?: string;
+}
+
+export interface Thumbnail {
+  /** Time that was asked for, in seconds */
+  requestedTime: number;
+  /** Time of the sync sample shown, in seconds */
+  time: number;
+  /** Image file in the thumbnail cache */
+  path: string;
+  /** Image width in pixels */
+  width: number;
+  /** Image height in pixels */
+  height: number;
+  /** Whether the image came from the cache */
+  cached: boolean;
+}
+
+/** Promise returned by processVideo, carrying the id to pass to cancelJob */
+export type CompressionJob = Promise<CompressionResult> & { jobId: string };
+
+/** Promise returned by extractThumbnails, carrying the id to pass to cancelJob */
+export type ThumbnailJob = Promise<Thumbnail[]> & { jobId: string };
+
+export interface BatchJob {
+  /** Absolute path to the input video file */
+  inputPath: string;
+  /** Absolute path for the output file */
+  outputPath: string;
+  /** Overrides for this item, merged over the batch settings */
+  settings?: CompressionSettings;
+  /** Identifier for cancelJob; defaults to `<batchId>-<index>` */
+  jobId?: string;
+}
+
+export interface BatchSettings extends CompressionSettings {
+  /** Identifier for cancelJob that stops every item; generated when omitted */
+  batchId?: string;
+}
+
+export interface BatchItemResult {
+  /** Position of the item in the jobs array */
+  index: number;
+  /** Identifier of the item's job */
+  jobId: string;
+  /** Input file of the item */
+  inputPath: string;
+  /** Outcome of the item */
+  status: 'completed' | 'failed' | 'cancelled';
+  /** Processing result when the item completed */
+  result?: CompressionResult;
+  /** Error code when the item failed or was cancelled */
+  errorCode?: string;
+  /** Error message when the item failed or was cancelled */
+  error?: string;
+}
+
+/** Promise returned by processVideos, carrying the id to pass to cancelJob */
+export type BatchCompressionJob = Promise<BatchItemResult[]> & {
+  batchId: string;
+};
+
 export interface VideoRecompressionInterface {
   /**
    * Initialize the video recompression module and test connectivity
@@ -110,15 +335,226 @@ export interface VideoRecompressionInterface {
    * @param inputPath Absolute path to the input video file
    * @param outputPath Absolute path for the output file
    * @param settings Optional compression settings to customize output
-   * @param onProgress Optional progress callback function (receives values from 0.0 to 1.0)
-   * @returns Promise that resolves to processing result with details about the operation performed
+   * @param onProgress Optional progress callback (receives values from 0.0 to 1.0, plus throughput and ETA on Android)
+   * @returns Promise that resolves to processing result with details about the operation performed;
+   * its `jobId` property identifies the job for cancelJob
    */
   processVideo(
     inputPath: string,
     outputPath: string,
     settings?: CompressionSettings,
-    onProgress?: (progress: number) => void
-  ): Promise<CompressionResult>;
+    onProgress?: (progress: number, event: ProgressEvent) => void
+  ): CompressionJob;
+
+  /**
+   * Cancel a running processVideo or extractThumbnails job
+   *
+   * The job stops at its next sample, releases its codecs and deletes the partial output;
+   * its promise rejects with code 'CANCELLED'. Not supported on iOS yet.
+   *
+   * @param jobId Id from the processVideo promise or from `settings.jobId`
+   * @returns Promise that resolves to true if a running job was found
+   */
+  cancelJob(jobId: string): Promise<boolean>;
+
+  /**
+   * Look up a processVideo job by id, including jobs from before an app restart
+   *
+   * Durable jobs are recorded in an on-disk queue; those without an outcome run again
+   * when the module starts. Android only.
+   *
+   * @param jobId Id from the processVideo promise or from `settings.jobId`
+   * @returns Promise that resolves to the job status, or null for an unknown id
+   */
+  getJobResult(jobId: string): Promise<JobStatus | null>;
+
+  /**
+   * Counters of the sample buffer pool shared by all jobs
+   *
+   * Android only.
+   *
+   * @returns Promise that resolves to the allocations and reuses since the module was created
+   */
+  getBufferPoolStats(): Promise<BufferPoolStats>;
+
+  /**
+   * Predict what processVideo would do with a file and what it would cost
+   *
+   * Times come from a cost model that learns from the jobs finished on this device and
+   * is kept across app restarts. Android only.
+   *
+   * @param filePath Absolute path to the video file
+   * @param settings Settings the job would run with
+   * @returns Promise that resolves to the chosen action, predicted size and predicted time
+   */
+  estimateProcessing(
+    filePath: string,
+    settings?: CompressionSettings
+  ): Promise<ProcessingEstimate>;
+
+  /**
+   * Extract thumbnails from the keyframes closest to the given times
+   *
+   * Only those keyframes are decoded, at reduced size, and the images are cached on disk
+   * by file fingerprint, so gallery screens can ask again cheaply. Android only.
+   *
+   * @param filePath Absolute path to the video file
+   * @param countOrTimestamps Number of evenly spaced thumbnails, or the times in seconds
+   * @param options Size, image format and an optional jobId
+   * @returns Promise that resolves to one thumbnail per requested time, in order; its `jobId`
+   * property identifies the call for cancelJob
+   */
+  extractThumbnails(
+    filePath: string,
+    countOrTimestamps: number | number[],
+    options?: ThumbnailOptions
+  ): ThumbnailJob;
+
+  /**
+   * Process many videos as one pipelined batch
+   *
+   * Upcoming files are analyzed while earlier ones are still being written, and items
+   * run concurrently up to the device's job limits. A failing item does not stop the
+   * batch; its entry reports the error instead. Android only.
+   *
+   * @param jobs Files to process
+   * @param settings Settings shared by all items
+   * @param onItem Optional callback invoked as soon as each item finishes
+   * @returns Promise that resolves to one entry per job, in input order; its `batchId`
+   * property cancels the whole batch through cancelJob
+   */
+  processVideos(
+    jobs: BatchJob[],
+    settings?: BatchSettings,
+    onItem?: (item: BatchItemResult) => void
+  ): BatchCompressionJob;
+
+  /**
+   * Listen for the fragments of a job started with `fragmentedOutput`
+   *
+   * Each event describes a byte range of the output file that is complete, so it can be
+   * uploaded while the job is still running. The job's promise resolving marks the end
+   * of the stream. Android only.
+   *
+   * @param jobId Id from the processVideo promise
+   * @param listener Called with each finished fragment, init segment first
+   * @returns Subscription to remove once the job has settled
+   */
+  addFragmentListener(
+    jobId: string,
+    listener: (fragment: FragmentEvent) => void
+  ): { remove(): void };
 }
 
-export default VideoRecompression as VideoRecompressionInterface;
+const PROGRESS_EVENT = 'VideoRecompressionProgress';
+const BATCH_ITEM_EVENT = 'VideoRecompressionBatchItem';
+const FRAGMENT_EVENT = 'VideoRecompressionFragment';
+
+let jobCounter = 0;
+let progressEmitter: NativeEventEmitter | null = null;
+
+function createJobId(): string {
+  jobCounter += 1;
+  return `job-${Date.now().toString(36)}-${jobCounter}`;
+}
+
+function getProgressEmitter(): NativeEventEmitter {
+  if (!progressEmitter) {
+    progressEmitter = new NativeEventEmitter(NativeModules.VideoRecompression);
+  }
+  return progressEmitter;
+}
+
+const VideoRecompressionModule: VideoRecompressionInterface = {
+  init: () => VideoRecompression.init(),
+  analyzeVideo: (filePath: string) => VideoRecompression.analyzeVideo(filePath),
+  processVideo: (
+    inputPath: string,
+    outputPath: string,
+    settings?: CompressionSettings,
+    onProgress?: (progress: number, event: ProgressEvent) => void
+  ) => {
+    const jobId = settings?.jobId || createJobId();
+    // Subscribe before starting so no early event is missed
+    const subscription = onProgress
+      ? getProgressEmitter().addListener(
+          PROGRESS_EVENT,
+          (event: ProgressEvent) => {
+            if (event.jobId === jobId) {
+              onProgress(event.progress, event);
+            }
+          }
+        )
+      : null;
+    const job = VideoRecompression.processVideo(inputPath, outputPath, {
+      ...settings,
+      jobId,
+      reportProgress: onProgress != null,
+    }) as CompressionJob;
+    job.jobId = jobId;
+    if (subscription) {
+      const unsubscribe = () => subscription.remove();
+      job.then(unsubscribe, unsubscribe);
+    }
+    return job;
+  },
+  cancelJob: (jobId: string) => VideoRecompression.cancelJob(jobId),
+  getJobResult: (jobId: string) => VideoRecompression.getJobResult(jobId),
+  getBufferPoolStats: () => VideoRecompression.getBufferPoolStats(),
+  estimateProcessing: (filePath: string, settings?: CompressionSettings) =>
+    VideoRecompression.estimateProcessing(filePath, settings || {}),
+  extractThumbnails: (
+    filePath: string,
+    countOrTimestamps: number | number[],
+    options?: ThumbnailOptions
+  ) => {
+    const jobId = options?.jobId || createJobId();
+    const job = VideoRecompression.extractThumbnails(filePath, {
+      ...options,
+      jobId,
+      ...(Array.isArray(countOrTimestamps)
+        ? { timestamps: countOrTimestamps }
+        : { count: countOrTimestamps }),
+    }) as ThumbnailJob;
+    job.jobId = jobId;
+    return job;
+  },
+  processVideos: (
+    jobs: BatchJob[],
+    settings?: BatchSettings,
+    onItem?: (item: BatchItemResult) => void
+  ) => {
+    const batchId = settings?.batchId || createJobId();
+    const subscription = onItem
+      ? getProgressEmitter().addListener(
+          BATCH_ITEM_EVENT,
+          (event: BatchItemResult & { batchId: string }) => {
+            if (event.batchId === batchId) {
+              onItem(event);
+            }
+          }
+        )
+      : null;
+    const batch = VideoRecompression.processVideos(jobs, {
+      ...settings,
+      batchId,
+    }) as BatchCompressionJob;
+    batch.batchId = batchId;
+    if (subscription) {
+      const unsubscribe = () => subscription.remove();
+      batch.then(unsubscribe, unsubscribe);
+    }
+    return batch;
+  },
+  addFragmentListener: (
+    jobId: string,
+    listener: (fragment: FragmentEvent) => void
+  ) =>
+    getProgressEmitter().addListener(FRAGMENT_EVENT, (event: FragmentEvent) => {
+      if (event.jobId === jobId) {
+        listener(event);
+      }
+    }),
+};
+
+export default VideoRecompressionModule;